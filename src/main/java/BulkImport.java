@@ -0,0 +1,65 @@
+import store.BulkLoader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// BulkImport seeds a new data directory from tab-separated key/value lines, read from a file or stdin:
+//
+//   java BulkImport <data dir> [input file]
+public class BulkImport {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: BulkImport <data dir> [input file]");
+            System.exit(1);
+        }
+
+        InputStream input = args.length == 2 ? new FileInputStream(args[1]) : System.in;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            long startTime = System.currentTimeMillis();
+            int segments = new BulkLoader(new File(args[0])).load(new LineIterator(reader));
+            System.out.printf("imported %d segments in %dms\n", segments, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private static class LineIterator implements Iterator<Map.Entry<String, String>> {
+        private BufferedReader reader;
+        private String nextLine;
+        private long lineNumber = 0;
+
+        LineIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        public boolean hasNext() {
+            if (nextLine != null) {
+                return true;
+            }
+            try {
+                nextLine = reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lineNumber++;
+            return nextLine != null;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = null;
+
+            int separator = line.indexOf('\t');
+            if (separator < 0) {
+                throw new IllegalArgumentException("line " + lineNumber + " has no tab between key and value");
+            }
+            return new AbstractMap.SimpleImmutableEntry<String, String>(
+                    line.substring(0, separator), line.substring(separator + 1));
+        }
+    }
+}
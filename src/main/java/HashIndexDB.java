@@ -1,19 +1,65 @@
 import server.DBServer;
 import store.HashIndexStore;
+import store.Namespaces;
+import store.SpillableIndex;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class HashIndexDB {
     public static void main(String[] args) throws Exception {
-        // TODO: replace hardcoded filename
-
-        File dataDir = new File("./datafile");
-        dataDir.mkdir();
+        // segments are striped across every data directory given, or ./datafile if there are none.
+        // --lazy-load starts serving before the index has finished loading, or --spill-index keeps the index
+        // on disk for keyspaces that don't fit in memory, for the default store and every namespace alike.
+        // Namespaces are kept next to the first data directory.
+        // --port=<port> serves on a port other than 8090, for running several nodes on one host
+        List<File> dataDirs = new ArrayList<File>();
+        boolean lazyLoad = false;
+        boolean spillIndex = false;
+        int port = 8090;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+                continue;
+            }
+            if (arg.equals("--lazy-load")) {
+                lazyLoad = true;
+                continue;
+            }
+            if (arg.equals("--spill-index")) {
+                spillIndex = true;
+                continue;
+            }
+            dataDirs.add(new File(arg));
+        }
+        if (lazyLoad && spillIndex) {
+            // loading in the background tracks every key it has seen in memory, which defeats spilling the index
+            System.err.println("--lazy-load can't be combined with --spill-index");
+            System.err.println("usage: HashIndexDB [--port=<port>] [--lazy-load | --spill-index] [data dir...]");
+            System.exit(1);
+        }
+        if (dataDirs.isEmpty()) {
+            dataDirs.add(new File("./datafile"));
+        }
+        for (File dataDir : dataDirs) {
+            dataDir.mkdirs();
+        }
 
-        try (HashIndexStore store = new HashIndexStore(dataDir)) {
-            store.loadIndex();
+        File namespaceRoot = new File(dataDirs.get(0).getAbsolutePath() + ".namespaces");
+        try (HashIndexStore store = new HashIndexStore(dataDirs); Namespaces namespaces = new Namespaces(namespaceRoot, lazyLoad, spillIndex)) {
+            if (spillIndex) {
+                File indexFile = new File(dataDirs.get(0).getAbsolutePath() + ".index");
+                store.setIndex(new SpillableIndex(indexFile, 1 << 16, 4096));
+            }
+            if (lazyLoad) {
+                store.loadIndexInBackground();
+            } else {
+                store.loadIndex();
+            }
             store.scheduleCompaction();
-            DBServer server = new DBServer(store);
+            DBServer server = new DBServer(store, namespaces);
+            server.setPort(port);
             server.run();
         }
 
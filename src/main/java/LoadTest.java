@@ -0,0 +1,120 @@
+import loadgen.KeyDistribution;
+import loadgen.LoadGenerator;
+import loadgen.Report;
+import server.DBServer;
+import store.HashIndexStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// LoadTest runs a LoadGenerator against a server and prints the latencies it saw:
+//
+//   java LoadTest [--url=<server>] [--rate=<requests/s>] [--duration=<s>] [--warmup=<s>] [--keys=<count>]
+//                 [--distribution=uniform|zipfian|zipfian:<theta>] [--mix=<read>:<write>:<delete>]
+//                 [--value-size=<size>|<min>-<max>] [--no-preload] [--save=<file>] [--baseline=<file>]
+//
+// Without --url it starts a server on a fresh store in a temporary directory, so running it with the same options
+// before and after a change to the engine, saving the first report and passing it as the baseline of the second,
+// gives a like-for-like comparison
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        double rate = 1000;
+        long durationSeconds = 30;
+        long warmupSeconds = 5;
+        int keyCount = 100000;
+        String distribution = "zipfian";
+        int[] mix = { 90, 10, 0 };
+        int minValueSize = 100;
+        int maxValueSize = 100;
+        boolean preload = true;
+        File save = null;
+        File baseline = null;
+
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--url=")) {
+                url = value;
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--duration=")) {
+                durationSeconds = Long.parseLong(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmupSeconds = Long.parseLong(value);
+            } else if (arg.startsWith("--keys=")) {
+                keyCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--distribution=")) {
+                distribution = value;
+            } else if (arg.startsWith("--mix=")) {
+                String[] parts = value.split(":");
+                if (parts.length != 3) {
+                    usage("--mix takes read:write:delete percentages");
+                }
+                for (int i = 0; i < 3; i++) {
+                    mix[i] = Integer.parseInt(parts[i]);
+                }
+            } else if (arg.startsWith("--value-size=")) {
+                String[] parts = value.split("-");
+                minValueSize = Integer.parseInt(parts[0]);
+                maxValueSize = Integer.parseInt(parts[parts.length - 1]);
+            } else if (arg.equals("--no-preload")) {
+                preload = false;
+            } else if (arg.startsWith("--save=")) {
+                save = new File(value);
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = new File(value);
+            } else {
+                usage("unknown option " + arg);
+            }
+        }
+
+        File localDataDir = null;
+        HashIndexStore localStore = null;
+        DBServer localServer = null;
+        if (url == null) {
+            localDataDir = Files.createTempDirectory("loadtest").toFile();
+            localStore = new HashIndexStore(localDataDir);
+            localStore.loadIndex();
+            localServer = new DBServer(localStore);
+            localServer.setPort(0);
+            localServer.start();
+            url = "http://localhost:" + localServer.getPort();
+            System.out.println("started a local server at " + url);
+        }
+
+        try {
+            LoadGenerator generator = new LoadGenerator(url);
+            generator.setRate(rate);
+            generator.setDuration(durationSeconds * 1000);
+            generator.setWarmup(warmupSeconds * 1000);
+            generator.setKeys(keyCount, KeyDistribution.parse(distribution, keyCount));
+            generator.setMix(mix[0], mix[1], mix[2]);
+            generator.setValueSize(minValueSize, maxValueSize);
+            generator.setPreload(preload);
+
+            Report report = generator.run();
+            report.print(System.out, baseline != null ? Report.load(baseline) : null);
+            if (save != null) {
+                report.save(save);
+            }
+        } finally {
+            if (localServer != null) {
+                localServer.stop();
+                localStore.close();
+                try (Stream<File> files = Files.walk(localDataDir.toPath()).map(path -> path.toFile())) {
+                    files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("usage: LoadTest [--url=<server>] [--rate=<requests/s>] [--duration=<s>] [--warmup=<s>] "
+                + "[--keys=<count>] [--distribution=uniform|zipfian|zipfian:<theta>] [--mix=<read>:<write>:<delete>] "
+                + "[--value-size=<size>|<min>-<max>] [--no-preload] [--save=<file>] [--baseline=<file>]");
+        System.exit(1);
+    }
+}
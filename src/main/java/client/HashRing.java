@@ -0,0 +1,85 @@
+package client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// HashRing places keys on nodes by consistent hashing. Each node is hashed onto the ring at virtualNodes points,
+// and a key belongs to the first node point at or after the key's own hash. Adding or removing a node only moves
+// the keys between its points and the points before them, about 1/N of the keys, and the virtual nodes spread
+// that evenly over the other nodes. Rings are immutable: withNode and withoutNode return a new ring
+public class HashRing {
+    private final int virtualNodes;
+    private final TreeMap<Long, String> points;
+    private final List<String> nodes;
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("at least one virtual node per node is required");
+        }
+        this.virtualNodes = virtualNodes;
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(nodes)));
+        this.points = new TreeMap<Long, String>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // on the rare collision the node that sorts first keeps the point, so every ring with the same
+                // nodes agrees whichever order they were added in
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    // nodeFor returns the node key belongs to, or null if the ring is empty
+    public String nodeFor(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    // sourcesFor returns the nodes that hold keys which would move to node if it were added to this ring: the
+    // owners of the points just after each of node's. With many virtual nodes that's usually every node, but
+    // a small ring with few virtual nodes can leave some out
+    public Set<String> sourcesFor(String node) {
+        Set<String> sources = new TreeSet<String>();
+        if (points.isEmpty()) {
+            return sources;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(node + "#" + i));
+            sources.add(point != null ? point.getValue() : points.firstEntry().getValue());
+        }
+        return sources;
+    }
+
+    public HashRing withNode(String node) {
+        List<String> added = new ArrayList<String>(nodes);
+        added.add(node);
+        return new HashRing(added, virtualNodes);
+    }
+
+    public HashRing withoutNode(String node) {
+        List<String> removed = new ArrayList<String>(nodes);
+        removed.remove(node);
+        return new HashRing(removed, virtualNodes);
+    }
+
+    // 64-bit FNV-1a, finished with MurmurHash3's mixer since FNV alone spreads short, similar keys poorly
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
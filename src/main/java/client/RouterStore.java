@@ -0,0 +1,496 @@
+package client;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import store.LoadStatus;
+import store.Store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+// RouterStore is a Store spread over several MapSack nodes. Each key lives on the node a HashRing places it on,
+// and operations on it are sent to that node's HTTP API. Connections to each node are kept alive and reused by
+// the HttpClient's pool. getAll and putAll split a batch by node and send each node its share in one request.
+//
+// Nodes are given as base URLs like http://host:8090. addNode and removeNode change the ring and move just the
+// keys whose node changed
+public class RouterStore implements Store {
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+    // how many keys migrate sends to a node in one request
+    private static final int MIGRATION_BATCH = 1000;
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private HttpClient http;
+    private Gson gson = new GsonBuilder().serializeNulls().create();
+    private Duration requestTimeout = Duration.ofSeconds(30);
+
+    private volatile HashRing ring;
+    // set while keys are moving after a change to the ring. A read that misses on a key's new node tries the node
+    // it's moving off, so keys don't disappear while they're being copied
+    private volatile HashRing previousRing;
+    private final Object membershipLock = new Object();
+
+    public RouterStore(List<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public RouterStore(List<String> nodes, int virtualNodes) {
+        List<String> normalized = new ArrayList<String>();
+        for (String node : nodes) {
+            normalized.add(normalize(node));
+        }
+        this.ring = new HashRing(normalized, virtualNodes);
+        // the server only speaks HTTP/1.1, so don't try to upgrade every new connection
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public List<String> nodes() {
+        return ring.nodes();
+    }
+
+    public String get(String key) throws IOException {
+        return await(getAsync(key));
+    }
+
+    public CompletableFuture<String> getAsync(String key) {
+        HashRing current = ring;
+        HashRing previous = previousRing;
+        String node = nodeFor(current, key);
+        CompletableFuture<String> value = sendAsync(getRequest(node, key), this::readValue);
+        if (previous == null || node.equals(previous.nodeFor(key))) {
+            return value;
+        }
+        return value.thenCompose(found -> found != null ? CompletableFuture.completedFuture(found)
+                : sendAsync(getRequest(previous.nodeFor(key), key), this::readValue));
+    }
+
+    // getBuffer returns the value's raw bytes, which the node sends without JSON encoding them
+    public ByteBuffer getBuffer(String key) throws IOException {
+        HashRing current = ring;
+        HashRing previous = previousRing;
+        String node = nodeFor(current, key);
+        ByteBuffer value = getBuffer(node, key);
+        if (value != null || previous == null || node.equals(previous.nodeFor(key))) {
+            return value;
+        }
+        return getBuffer(previous.nodeFor(key), key);
+    }
+
+    private ByteBuffer getBuffer(String node, String key) throws IOException {
+        HttpRequest request = request(node, "/?" + form("key", key))
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build();
+        return send(request, HttpResponse.BodyHandlers.ofByteArray(), response -> {
+            if (response.statusCode() == 404) {
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("node " + response.uri().getAuthority() + " answered " + response.statusCode());
+            }
+            return ByteBuffer.wrap(response.body());
+        });
+    }
+
+    public void put(String key, String value) throws IOException {
+        await(putAsync(key, value));
+    }
+
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        HttpRequest request = formRequest(nodeFor(ring, key), "/", form(key, value));
+        return sendAsync(request, this::readSuccess);
+    }
+
+    public void delete(String key) throws IOException {
+        await(deleteAsync(key));
+    }
+
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return sendAsync(deleteRequest(nodeFor(ring, key), key), this::readSuccess);
+    }
+
+    public boolean compareAndSet(String key, String expected, String value) throws IOException {
+        String body = form("key", key) + "&" + form("value", value);
+        if (expected != null) {
+            body += "&" + form("expected", expected);
+        }
+        return send(formRequest(nodeFor(ring, key), "/cas", body), response -> {
+            if (response.statusCode() == 409) {
+                return false;
+            }
+            readSuccess(response);
+            return true;
+        });
+    }
+
+    public String putIfAbsent(String key, String value) throws IOException {
+        return putIfAbsent(nodeFor(ring, key), key, value);
+    }
+
+    private String putIfAbsent(String node, String key, String value) throws IOException {
+        HttpRequest request = formRequest(node, "/putIfAbsent", form("key", key) + "&" + form("value", value));
+        while (true) {
+            boolean put = send(request, response -> {
+                if (response.statusCode() == 409) {
+                    return false;
+                }
+                readSuccess(response);
+                return true;
+            });
+            if (put) {
+                return null;
+            }
+            // the node doesn't say what the value is. If it's been deleted since, try again
+            String current = send(getRequest(node, key), this::readValue);
+            if (current != null) {
+                return current;
+            }
+        }
+    }
+
+    public long increment(String key, long delta) throws IOException {
+        String body = form("key", key) + "&" + form("delta", Long.toString(delta));
+        return send(formRequest(nodeFor(ring, key), "/increment", body), response -> {
+            if (response.statusCode() == 400) {
+                throw new NumberFormatException(gson.fromJson(response.body(), Reply.class).message);
+            }
+            return Long.parseLong(readReply(response).value);
+        });
+    }
+
+    // getAll returns the values of the keys that are set, fetching each node's keys in a single request
+    public Map<String, String> getAll(Collection<String> keys) throws IOException {
+        HashRing current = ring;
+        HashRing previous = previousRing;
+        Map<String, String> values = await(fetchAll(current, keys));
+        if (previous == null) {
+            return values;
+        }
+
+        List<String> moving = new ArrayList<String>();
+        for (String key : keys) {
+            if (!values.containsKey(key) && !nodeFor(current, key).equals(previous.nodeFor(key))) {
+                moving.add(key);
+            }
+        }
+        if (!moving.isEmpty()) {
+            values.putAll(await(fetchAll(previous, moving)));
+        }
+        return values;
+    }
+
+    // putAll writes every key, sending each node its share in a single request. A null value deletes its key
+    public void putAll(Map<String, String> writes) throws IOException {
+        HashRing current = ring;
+        Map<String, Map<String, String>> byNode = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            byNode.computeIfAbsent(nodeFor(current, write.getKey()), node -> new HashMap<String, String>())
+                    .put(write.getKey(), write.getValue());
+        }
+
+        List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+        for (Map.Entry<String, Map<String, String>> nodeWrites : byNode.entrySet()) {
+            HttpRequest request = jsonRequest(nodeWrites.getKey(), "/batch/put", gson.toJson(nodeWrites.getValue()));
+            results.add(sendAsync(request, this::readSuccess));
+        }
+        await(CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private CompletableFuture<Map<String, String>> fetchAll(HashRing ring, Collection<String> keys) {
+        Map<String, List<String>> byNode = new HashMap<String, List<String>>();
+        for (String key : keys) {
+            byNode.computeIfAbsent(nodeFor(ring, key), node -> new ArrayList<String>()).add(key);
+        }
+
+        List<CompletableFuture<Map<String, String>>> results = new ArrayList<CompletableFuture<Map<String, String>>>();
+        for (Map.Entry<String, List<String>> nodeKeys : byNode.entrySet()) {
+            HttpRequest request = jsonRequest(nodeKeys.getKey(), "/batch/get", gson.toJson(nodeKeys.getValue()));
+            results.add(sendAsync(request, response -> readReply(response).values));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, String> values = new HashMap<String, String>();
+            for (CompletableFuture<Map<String, String>> result : results) {
+                Map<String, String> nodeValues = result.join();
+                if (nodeValues != null) {
+                    values.putAll(nodeValues);
+                }
+            }
+            return values;
+        });
+    }
+
+    // scan streams every node's export one node after another
+    public Stream<Map.Entry<String, String>> scan() throws IOException {
+        return ring.nodes().stream().flatMap(node -> {
+            try {
+                return export(node);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private Stream<Map.Entry<String, String>> export(String node) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(node + "/export?parallel=false")).GET().build();
+        HttpResponse<Stream<String>> response = send(request, HttpResponse.BodyHandlers.ofLines(), r -> r);
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("node " + node + " answered " + response.statusCode() + " to export");
+        }
+        return response.body()
+                .filter(line -> !line.isEmpty())
+                .map(line -> {
+                    Reply record = gson.fromJson(line, Reply.class);
+                    return new AbstractMap.SimpleImmutableEntry<String, String>(record.key, record.value);
+                });
+    }
+
+    // addNode adds a node to the ring and moves the keys that now belong to it off the other nodes
+    public void addNode(String node) throws IOException {
+        synchronized (membershipLock) {
+            HashRing before = ring;
+            String added = normalize(node);
+            migrate(before, before.withNode(added), before.sourcesFor(added), false);
+        }
+    }
+
+    // removeNode takes a node out of the ring after moving its keys to the nodes they now belong to. If the node
+    // can't be read from, it's still removed and its keys are lost
+    public void removeNode(String node) throws IOException {
+        synchronized (membershipLock) {
+            HashRing before = ring;
+            if (before.nodes().size() == 1) {
+                throw new IllegalStateException("can't remove the last node");
+            }
+            String removed = normalize(node);
+            migrate(before, before.withoutNode(removed), Collections.singletonList(removed), true);
+        }
+    }
+
+    // migrate switches to the new ring and then moves each key on sources whose node has changed. Keys are copied
+    // to their new node in batches with /batch/putIfAbsent, so a write that's reached the new node since the switch
+    // isn't overwritten with the older value, but a delete in that window can be undone by the copy. Each batch is
+    // then deleted from the source in one /batch/put. A write sent through the old ring that's still in flight when
+    // the ring changes can land on the old node after its key has been copied, and is lost
+    private void migrate(HashRing before, HashRing after, Collection<String> sources, boolean leaving)
+            throws IOException {
+        previousRing = before;
+        ring = after;
+        try {
+            for (String source : sources) {
+                Map<String, Map<String, String>> byTarget = new HashMap<String, Map<String, String>>();
+                try (Stream<Map.Entry<String, String>> records = export(source)) {
+                    Iterator<Map.Entry<String, String>> iterator = records.iterator();
+                    while (iterator.hasNext()) {
+                        Map.Entry<String, String> record = iterator.next();
+                        String target = after.nodeFor(record.getKey());
+                        if (target.equals(source)) {
+                            continue;
+                        }
+                        Map<String, String> batch = byTarget.computeIfAbsent(target, node -> new HashMap<String, String>());
+                        batch.put(record.getKey(), record.getValue());
+                        if (batch.size() >= MIGRATION_BATCH) {
+                            moveBatch(source, target, batch, leaving);
+                            byTarget.remove(target);
+                        }
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (Map.Entry<String, Map<String, String>> batch : byTarget.entrySet()) {
+                    moveBatch(source, batch.getKey(), batch.getValue(), leaving);
+                }
+            }
+        } finally {
+            previousRing = null;
+        }
+    }
+
+    private void moveBatch(String source, String target, Map<String, String> records, boolean leaving)
+            throws IOException {
+        send(jsonRequest(target, "/batch/putIfAbsent", gson.toJson(records)), this::readSuccess);
+        if (!leaving) {
+            // a null value deletes its key
+            Map<String, String> deletes = new HashMap<String, String>();
+            for (String key : records.keySet()) {
+                deletes.put(key, null);
+            }
+            send(jsonRequest(source, "/batch/put", gson.toJson(deletes)), this::readSuccess);
+        }
+    }
+
+    // loadStatus combines every node's: the cluster is ready once they all are. A node that can't be reached
+    // counts as failed
+    public LoadStatus loadStatus() {
+        LoadStatus.State state = LoadStatus.State.READY;
+        int segmentsLoaded = 0;
+        int segmentsTotal = 0;
+        for (String node : ring.nodes()) {
+            LoadStatus status;
+            try {
+                HttpRequest request = request(node, "/admin/ready").GET().build();
+                status = send(request, HttpResponse.BodyHandlers.ofString(),
+                        response -> gson.fromJson(response.body(), LoadStatus.class));
+            } catch (IOException | RuntimeException e) {
+                status = new LoadStatus(LoadStatus.State.FAILED, 0, 0);
+            }
+            if (status.state == LoadStatus.State.FAILED || state == LoadStatus.State.READY) {
+                state = status.state;
+            }
+            segmentsLoaded += status.segmentsLoaded;
+            segmentsTotal += status.segmentsTotal;
+        }
+        return new LoadStatus(state, segmentsLoaded, segmentsTotal);
+    }
+
+    // the HttpClient's connections are closed once they've been idle for a while, so there's nothing to release
+    public void close() {
+    }
+
+    private String nodeFor(HashRing ring, String key) {
+        String node = ring.nodeFor(key);
+        if (node == null) {
+            throw new IllegalStateException("there are no nodes to send key " + key + " to");
+        }
+        return node;
+    }
+
+    private HttpRequest.Builder request(String node, String path) {
+        return HttpRequest.newBuilder(URI.create(node + path)).timeout(requestTimeout);
+    }
+
+    private HttpRequest getRequest(String node, String key) {
+        return request(node, "/?" + form("key", key)).GET().build();
+    }
+
+    private HttpRequest deleteRequest(String node, String key) {
+        return request(node, "/?" + form("key", key)).DELETE().build();
+    }
+
+    // values are sent in the request body rather than the URL, which would limit their size
+    private HttpRequest formRequest(String node, String path, String body) {
+        return request(node, path)
+                .header("Content-Type", FORM_CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private HttpRequest jsonRequest(String node, String path, String body) {
+        return request(node, path)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private static String form(String name, String value) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8) + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String normalize(String node) {
+        return node.endsWith("/") ? node.substring(0, node.length() - 1) : node;
+    }
+
+    private String readValue(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        return readReply(response).value;
+    }
+
+    private Void readSuccess(HttpResponse<String> response) throws IOException {
+        readReply(response);
+        return null;
+    }
+
+    private Reply readReply(HttpResponse<String> response) throws IOException {
+        Reply reply = null;
+        try {
+            reply = gson.fromJson(response.body(), Reply.class);
+        } catch (RuntimeException e) {
+            // not JSON, so not from the store. Reported below with the status code
+        }
+        if (response.statusCode() != 200 || reply == null) {
+            String message = reply != null && reply.message != null ? reply.message : "no message";
+            throw new IOException("node " + response.uri().getAuthority() + " answered " + response.statusCode()
+                    + ": " + message);
+        }
+        return reply;
+    }
+
+    private <T> T send(HttpRequest request, ResponseReader<String, T> reader) throws IOException {
+        return send(request, HttpResponse.BodyHandlers.ofString(), reader);
+    }
+
+    private <B, T> T send(HttpRequest request, HttpResponse.BodyHandler<B> handler, ResponseReader<B, T> reader)
+            throws IOException {
+        try {
+            return reader.read(http.send(request, handler));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + request.uri().getAuthority());
+        }
+    }
+
+    private <T> CompletableFuture<T> sendAsync(HttpRequest request, ResponseReader<String, T> reader) {
+        return http.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            try {
+                return reader.read(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // await waits for an asynchronous result, rethrowing its failure as it would have been thrown synchronously
+    private static <T> T await(CompletableFuture<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a node");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private interface ResponseReader<B, T> {
+        T read(HttpResponse<B> response) throws IOException;
+    }
+
+    // Reply covers the fields of every response the server sends
+    private static class Reply {
+        String status;
+        String message;
+        String key;
+        String value;
+        Map<String, String> values;
+    }
+}
@@ -0,0 +1,93 @@
+package loadgen;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// KeyDistribution picks which of keyCount keys each request uses, as an index from 0 to keyCount - 1
+public abstract class KeyDistribution {
+    protected final int keyCount;
+
+    protected KeyDistribution(int keyCount) {
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("at least one key is required");
+        }
+        this.keyCount = keyCount;
+    }
+
+    public abstract int next();
+
+    public static KeyDistribution uniform(int keyCount) {
+        return new Uniform(keyCount);
+    }
+
+    // zipfian picks key i with probability proportional to 1 / (i + 1)^theta, so a few keys get most of the
+    // requests. A theta of 0.99 is the usual choice for modelling hot keys
+    public static KeyDistribution zipfian(int keyCount, double theta) {
+        return new Zipfian(keyCount, theta);
+    }
+
+    // parse reads a distribution name: uniform, zipfian, or zipfian:<theta>
+    public static KeyDistribution parse(String name, int keyCount) {
+        if (name.equals("uniform")) {
+            return uniform(keyCount);
+        }
+        if (name.equals("zipfian")) {
+            return zipfian(keyCount, 0.99);
+        }
+        if (name.startsWith("zipfian:")) {
+            return zipfian(keyCount, Double.parseDouble(name.substring("zipfian:".length())));
+        }
+        throw new IllegalArgumentException("unknown key distribution " + name);
+    }
+
+    private static class Uniform extends KeyDistribution {
+        Uniform(int keyCount) {
+            super(keyCount);
+        }
+
+        public int next() {
+            return ThreadLocalRandom.current().nextInt(keyCount);
+        }
+    }
+
+    // Zipfian uses the inverse-CDF approximation from Gray et al, "Quickly Generating Billion-Record Synthetic
+    // Databases", which only needs the zeta constant computed once up front
+    private static class Zipfian extends KeyDistribution {
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        Zipfian(int keyCount, double theta) {
+            super(keyCount);
+            if (theta <= 0 || theta >= 1) {
+                throw new IllegalArgumentException("zipfian theta must be between 0 and 1");
+            }
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetaN = zeta(keyCount, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        public int next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return Math.min(1, keyCount - 1);
+            }
+            int key = (int) (keyCount * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(key, keyCount - 1);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyHistogram counts latencies in microseconds in log-linear buckets, the way an HDR histogram does: values
+// below 1024 get a bucket each, and above that every power of two is split into 512 buckets, so any recorded value
+// is reported to within 0.2% however large it is. Recording is a single atomic increment, so it can be shared by
+// every thread completing requests. Values over an hour are counted as an hour
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 10;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    static final long MAX_VALUE = 60L * 60L * 1000L * 1000L;
+
+    private AtomicLongArray counts = new AtomicLongArray(bucketFor(MAX_VALUE) + 1);
+    private AtomicLong totalCount = new AtomicLong();
+    private AtomicLong maxValue = new AtomicLong();
+
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(bucketFor(value));
+        totalCount.incrementAndGet();
+        maxValue.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public long max() {
+        return maxValue.get();
+    }
+
+    // percentile returns the value that percentile percent of recorded values are at or below, reported as the
+    // highest value its bucket can hold, so it's never an underestimate
+    public long percentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= target) {
+                return Math.min(highestValueIn(bucket), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    public double mean() {
+        long total = 0;
+        long count = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            long bucketCount = counts.get(bucket);
+            total += bucketCount * lowestValueIn(bucket);
+            count += bucketCount;
+        }
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the shift leaves the value's top SUB_BUCKET_BITS - 1 bits, between HALF_SUB_BUCKETS and SUB_BUCKETS
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int top = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (top - HALF_SUB_BUCKETS);
+    }
+
+    static long lowestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long top = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return top << shift;
+    }
+
+    static long highestValueIn(int bucket) {
+        return lowestValueIn(bucket + 1) - 1;
+    }
+}
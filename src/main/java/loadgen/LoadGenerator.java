@@ -0,0 +1,244 @@
+package loadgen;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// LoadGenerator drives a server's HTTP API at a fixed request rate and reports the latencies it saw. It's open
+// loop: request i is sent at start + i / rate whether or not earlier requests have completed, and its latency is
+// measured from that intended send time. A closed-loop client that waits for each response before sending the next
+// sends fewer requests exactly when the server is slow, and so under-reports the stalls that matter most.
+//
+// Each request reads, writes or deletes a key picked by the KeyDistribution, in the proportions set by setMix.
+// The keys are written once before the run so reads find them, and a warmup period lets the JIT and the server
+// settle before anything is recorded
+public class LoadGenerator {
+    private static final int PRELOAD_BATCH = 1000;
+    // one random string that every written value is cut from, so making values costs nothing during the run
+    private static final int VALUE_POOL_SIZE = 1024 * 1024;
+
+    private String url;
+    private HttpClient http;
+    private Gson gson = new Gson();
+
+    private double rate = 1000;
+    private long durationMillis = 30 * 1000;
+    private long warmupMillis = 5 * 1000;
+    private int keyCount = 100000;
+    private KeyDistribution keys;
+    private int readPercent = 90;
+    private int writePercent = 10;
+    private int minValueSize = 100;
+    private int maxValueSize = 100;
+    private boolean preload = true;
+    private Duration requestTimeout = Duration.ofSeconds(30);
+    private String valuePool;
+
+    public LoadGenerator(String url) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    public void setRate(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("the request rate must be positive");
+        }
+        this.rate = rate;
+    }
+
+    public void setDuration(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public void setWarmup(long warmupMillis) {
+        this.warmupMillis = warmupMillis;
+    }
+
+    // setKeys sets how many keys there are and how requests are spread over them
+    public void setKeys(int keyCount, KeyDistribution keys) {
+        this.keyCount = keyCount;
+        this.keys = keys;
+    }
+
+    // setMix sets the percentage of requests that are reads, writes and deletes, which must add up to 100
+    public void setMix(int readPercent, int writePercent, int deletePercent) {
+        if (readPercent < 0 || writePercent < 0 || deletePercent < 0 || readPercent + writePercent + deletePercent != 100) {
+            throw new IllegalArgumentException("the read, write and delete percentages must add up to 100");
+        }
+        this.readPercent = readPercent;
+        this.writePercent = writePercent;
+    }
+
+    // setValueSize makes each written value between min and max characters long, uniformly
+    public void setValueSize(int min, int max) {
+        if (min < 0 || max < min || max > VALUE_POOL_SIZE) {
+            throw new IllegalArgumentException("value sizes must be between 0 and " + VALUE_POOL_SIZE);
+        }
+        this.minValueSize = min;
+        this.maxValueSize = max;
+    }
+
+    public void setPreload(boolean preload) {
+        this.preload = preload;
+    }
+
+    public Report run() throws IOException {
+        if (keys == null) {
+            keys = KeyDistribution.zipfian(keyCount, 0.99);
+        }
+        valuePool = randomString(VALUE_POOL_SIZE);
+        if (preload) {
+            preloadKeys();
+        }
+        if (warmupMillis > 0) {
+            runPhase(warmupMillis);
+        }
+        return runPhase(durationMillis);
+    }
+
+    private void preloadKeys() throws IOException {
+        for (int start = 0; start < keyCount; start += PRELOAD_BATCH) {
+            Map<String, String> batch = new HashMap<String, String>();
+            for (int i = start; i < Math.min(start + PRELOAD_BATCH, keyCount); i++) {
+                batch.put(key(i), nextValue());
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/batch/put"))
+                    .timeout(requestTimeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(batch), StandardCharsets.UTF_8))
+                    .build();
+            HttpResponse<String> response;
+            try {
+                response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted preloading keys");
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("preloading keys failed with " + response.statusCode() + ": " + response.body());
+            }
+        }
+    }
+
+    // runPhase sends requests at the configured rate for durationMillis and then waits for them all to complete
+    private Report runPhase(long durationMillis) throws IOException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        long[] operations = new long[3];
+
+        double intervalNanos = 1e9 / rate;
+        long requestCount = (long) (durationMillis / 1000.0 * rate);
+        long start = System.nanoTime();
+        for (long i = 0; i < requestCount; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int operation = nextOperation();
+            operations[operation]++;
+            long sent = System.nanoTime();
+            send(operation).whenComplete((response, error) -> {
+                long done = System.nanoTime();
+                latency.record((done - intended) / 1000);
+                serviceTime.record((done - sent) / 1000);
+                if (error != null || !succeeded(operation, response.statusCode())) {
+                    errors.incrementAndGet();
+                }
+                completed.incrementAndGet();
+            });
+        }
+
+        // every request has a timeout, so each one completes one way or another
+        while (completed.get() < requestCount) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for requests to complete");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Report report = new Report();
+        report.targetRate = rate;
+        report.achievedRate = requestCount / (elapsed / 1e9);
+        report.requests = requestCount;
+        report.reads = operations[0];
+        report.writes = operations[1];
+        report.deletes = operations[2];
+        report.errors = errors.get();
+        report.latency = Report.Latencies.of(latency);
+        report.serviceTime = Report.Latencies.of(serviceTime);
+        return report;
+    }
+
+    // nextOperation returns 0 for a read, 1 for a write and 2 for a delete
+    private int nextOperation() {
+        int roll = ThreadLocalRandom.current().nextInt(100);
+        if (roll < readPercent) {
+            return 0;
+        }
+        return roll < readPercent + writePercent ? 1 : 2;
+    }
+
+    private CompletableFuture<HttpResponse<Void>> send(int operation) {
+        String key = key(keys.next());
+        HttpRequest.Builder request;
+        if (operation == 1) {
+            request = HttpRequest.newBuilder(URI.create(url + "/"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(encode(key) + "=" + encode(nextValue())));
+        } else {
+            request = HttpRequest.newBuilder(URI.create(url + "/?key=" + encode(key)));
+            request = operation == 0 ? request.GET() : request.DELETE();
+        }
+        return http.sendAsync(request.timeout(requestTimeout).build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    // a read of a key that's been deleted is a miss, not an error
+    private static boolean succeeded(int operation, int status) {
+        return status == 200 || (operation == 0 && status == 404);
+    }
+
+    private String nextValue() {
+        int size = minValueSize == maxValueSize ? minValueSize
+                : ThreadLocalRandom.current().nextInt(minValueSize, maxValueSize + 1);
+        int offset = ThreadLocalRandom.current().nextInt(VALUE_POOL_SIZE - size + 1);
+        return valuePool.substring(offset, offset + size);
+    }
+
+    private static String key(int index) {
+        return "key" + index;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String randomString(int length) {
+        char[] chars = new char[length];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,99 @@
+package loadgen;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Report is the outcome of a LoadGenerator run. latency is measured from when each request was meant to be sent,
+// which is what a client sending at a fixed rate actually waits, so a stall is counted against every request that
+// queued up behind it rather than just the one that was in flight. serviceTime is measured from when the request
+// was actually sent, which hides those stalls - the gap between the two is the coordinated omission an ordinary
+// closed-loop benchmark would report. Reports are saved as JSON so a later run can be compared against them
+public class Report {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public double targetRate;
+    public double achievedRate;
+    public long requests;
+    public long reads;
+    public long writes;
+    public long deletes;
+    public long errors;
+    public Latencies latency;
+    public Latencies serviceTime;
+
+    // Latencies are in microseconds
+    public static class Latencies {
+        public long p50;
+        public long p90;
+        public long p99;
+        public long p999;
+        public long p9999;
+        public long max;
+        public double mean;
+
+        static Latencies of(LatencyHistogram histogram) {
+            Latencies latencies = new Latencies();
+            latencies.p50 = histogram.percentile(50);
+            latencies.p90 = histogram.percentile(90);
+            latencies.p99 = histogram.percentile(99);
+            latencies.p999 = histogram.percentile(99.9);
+            latencies.p9999 = histogram.percentile(99.99);
+            latencies.max = histogram.max();
+            latencies.mean = histogram.mean();
+            return latencies;
+        }
+
+        private long[] values() {
+            return new long[] { p50, p90, p99, p999, p9999, max, Math.round(mean) };
+        }
+    }
+
+    public void save(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    public static Report load(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, Report.class);
+        }
+    }
+
+    // print writes the report, and how its latencies changed since baseline if there is one
+    public void print(PrintStream out, Report baseline) {
+        out.printf("requests %d (%d reads, %d writes, %d deletes), %d errors\n", requests, reads, writes, deletes, errors);
+        out.printf("rate     %.1f/s target, %.1f/s achieved\n", targetRate, achievedRate);
+        out.println("latency in microseconds, measured from the intended send time; service time from the actual send");
+        out.printf("%-10s %9s %9s %9s %9s %9s %9s %9s\n", "", "p50", "p90", "p99", "p99.9", "p99.99", "max", "mean");
+        printRow(out, "latency", latency.values());
+        printRow(out, "service", serviceTime.values());
+        if (baseline == null) {
+            return;
+        }
+        printRow(out, "baseline", baseline.latency.values());
+        long[] now = latency.values();
+        long[] before = baseline.latency.values();
+        StringBuilder change = new StringBuilder(String.format("%-10s", "change"));
+        for (int i = 0; i < now.length; i++) {
+            change.append(before[i] == 0 ? String.format(" %9s", "-")
+                    : String.format(" %+8.1f%%", 100.0 * (now[i] - before[i]) / before[i]));
+        }
+        out.println(change);
+        if (Math.abs(baseline.targetRate - targetRate) > 0.01 * targetRate) {
+            out.printf("warning: the baseline ran at %.1f/s, so the runs aren't directly comparable\n",
+                    baseline.targetRate);
+        }
+    }
+
+    private static void printRow(PrintStream out, String name, long[] values) {
+        StringBuilder row = new StringBuilder(String.format("%-10s", name));
+        for (long value : values) {
+            row.append(String.format(" %9d", value));
+        }
+        out.println(row);
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import com.google.gson.Gson;
+import server.responses.SuccessResponse;
+import store.AccessSampler;
+import store.Sampled;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// AccessStatsServlet reports the store's sampled hot keys and per-segment read counts. A DELETE resets them
+public class AccessStatsServlet extends HttpServlet {
+
+    private Sampled store;
+    private Gson gson = new Gson();
+
+    AccessStatsServlet(Sampled store) {
+        this.store = store;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+
+        AccessSampler.Snapshot snapshot = store.accessSampler().snapshot();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(snapshot));
+    }
+
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+
+        store.accessSampler().reset();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new SuccessResponse()));
+    }
+}
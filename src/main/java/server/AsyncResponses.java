@@ -0,0 +1,66 @@
+package server;
+
+import com.google.gson.Gson;
+import org.eclipse.jetty.server.Request;
+import server.responses.ErrorResponse;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+// AsyncResponses finishes requests whose result comes from one of the store's asynchronous operations
+final class AsyncResponses {
+
+    private static final Gson gson = new Gson();
+
+    private AsyncResponses() {
+    }
+
+    // respond finishes the request once the store's result is ready, without holding a request thread while it waits.
+    // The servlet's mapping must support async
+    static <T> void respond(HttpServletRequest request, HttpServletResponse response, CompletableFuture<T> result,
+                            ResultWriter<T> writer) {
+        respond(request, response, result, writer, error -> false);
+    }
+
+    // errorWriter gets the first go at a failed result, and returns false for failures it leaves to the usual 500
+    static <T> void respond(HttpServletRequest request, HttpServletResponse response, CompletableFuture<T> result,
+                            ResultWriter<T> writer, ErrorWriter errorWriter) {
+        AsyncContext async = request.startAsync();
+        // the result completes on one of the store's I/O threads, so the response is written from Jetty's pool instead
+        Executor executor = Request.getBaseRequest(request).getHttpChannel().getConnector().getExecutor();
+        result.whenCompleteAsync((value, error) -> {
+            try {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                if (error != null) {
+                    if (errorWriter.write(error)) {
+                        return;
+                    }
+                    error.printStackTrace();
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    response.getWriter().println(gson.toJson(new ErrorResponse("could not complete request")));
+                    return;
+                }
+                writer.write(value);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                async.complete();
+            }
+        }, executor);
+    }
+
+    interface ResultWriter<T> {
+        void write(T result) throws IOException;
+    }
+
+    interface ErrorWriter {
+        boolean write(Throwable error) throws IOException;
+    }
+}
@@ -0,0 +1,110 @@
+package server;
+
+import com.google.gson.Gson;
+import server.responses.ErrorResponse;
+import server.responses.IncrementResponse;
+import server.responses.SuccessResponse;
+import store.Store;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// AtomicServlet serves the store's read-modify-write operations, so a client doesn't have to GET and then POST
+// with its own locking around both:
+//   POST /cas?key=k&expected=e&value=v   sets k to v if it's currently e. Leaving out expected means k must not be set
+//   POST /putIfAbsent?key=k&value=v      sets k to v if it isn't set
+//   POST /increment?key=k&delta=d        adds d, 1 by default, to the number stored at k and returns the result
+// A comparison that fails answers 409 Conflict
+public class AtomicServlet extends HttpServlet {
+
+    private Store store;
+    private Gson gson = new Gson();
+
+    AtomicServlet(Store store) {
+        this.store = store;
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+
+        String key = request.getParameter("key");
+        if (key == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(new ErrorResponse("a key must be provided")));
+            return;
+        }
+
+        switch (request.getServletPath()) {
+            case "/cas":
+                compareAndSet(key, request, response);
+                break;
+            case "/putIfAbsent":
+                putIfAbsent(key, request, response);
+                break;
+            case "/increment":
+                increment(key, request, response);
+                break;
+            default:
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                response.getWriter().println(gson.toJson(new ErrorResponse("unknown operation")));
+        }
+    }
+
+    private void compareAndSet(String key, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String value = request.getParameter("value");
+        if (value == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(new ErrorResponse("a value must be provided")));
+            return;
+        }
+
+        if (!store.compareAndSet(key, request.getParameter("expected"), value)) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().println(gson.toJson(
+                    new ErrorResponse("key " + key + " does not have the expected value")));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new SuccessResponse()));
+    }
+
+    private void putIfAbsent(String key, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String value = request.getParameter("value");
+        if (value == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(new ErrorResponse("a value must be provided")));
+            return;
+        }
+
+        String current = store.putIfAbsent(key, value);
+        if (current != null) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().println(gson.toJson(new ErrorResponse("key " + key + " is already set")));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new SuccessResponse()));
+    }
+
+    private void increment(String key, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long delta = 1;
+        long value;
+        try {
+            String deltaParameter = request.getParameter("delta");
+            if (deltaParameter != null) {
+                delta = Long.parseLong(deltaParameter);
+            }
+            value = store.increment(key, delta);
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(
+                    new ErrorResponse("the delta and the value of key " + key + " must be whole numbers")));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new IncrementResponse(key, value)));
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import server.responses.BatchGetResponse;
+import server.responses.ErrorResponse;
+import server.responses.SuccessResponse;
+import store.Store;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// BatchServlet reads or writes many keys in one request, so a client routing a batch across nodes sends each
+// node one request for its share:
+//   POST /batch/get with a JSON array of keys returns the values of the keys that are set
+//   POST /batch/put with a JSON object of keys to values writes them all, a null value deleting its key
+//   POST /batch/putIfAbsent with a JSON object of keys to values writes the keys that aren't already set
+// The keys go through the store's asynchronous operations, so they're queued and batched together there too
+public class BatchServlet extends HttpServlet {
+
+    private static final Type KEYS_TYPE = new TypeToken<List<String>>() {}.getType();
+    private static final Type WRITES_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+
+    private Store store;
+    private Gson gson = new Gson();
+
+    BatchServlet(Store store) {
+        this.store = store;
+    }
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+
+        String operation = request.getPathInfo() == null ? "" : request.getPathInfo();
+        try {
+            switch (operation) {
+                case "/get":
+                    batchGet(request, response);
+                    break;
+                case "/put":
+                    batchPut(request, response);
+                    break;
+                case "/putIfAbsent":
+                    batchPutIfAbsent(request, response);
+                    break;
+                default:
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    response.getWriter().println(gson.toJson(new ErrorResponse("unknown batch operation")));
+            }
+        } catch (JsonParseException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(new ErrorResponse("could not parse batch: " + e.getMessage())));
+        }
+    }
+
+    private void batchGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<String> keys = gson.fromJson(request.getReader(), KEYS_TYPE);
+        if (keys == null) {
+            keys = new ArrayList<String>();
+        }
+
+        List<CompletableFuture<String>> reads = new ArrayList<CompletableFuture<String>>(keys.size());
+        for (String key : keys) {
+            reads.add(store.getAsync(key));
+        }
+        List<String> batchKeys = keys;
+        CompletableFuture<Void> done = CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]));
+        AsyncResponses.respond(request, response, done, result -> {
+            Map<String, String> values = new HashMap<String, String>();
+            for (int i = 0; i < batchKeys.size(); i++) {
+                String value = reads.get(i).join();
+                if (value != null) {
+                    values.put(batchKeys.get(i), value);
+                }
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(gson.toJson(new BatchGetResponse(values)));
+        });
+    }
+
+    private void batchPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, String> writes = gson.fromJson(request.getReader(), WRITES_TYPE);
+        if (writes == null) {
+            writes = new HashMap<String, String>();
+        }
+
+        List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>(writes.size());
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            if (write.getValue() == null) {
+                results.add(store.deleteAsync(write.getKey()));
+            } else {
+                results.add(store.putAsync(write.getKey(), write.getValue()));
+            }
+        }
+        CompletableFuture<Void> done = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+        AsyncResponses.respond(request, response, done, result -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(gson.toJson(new SuccessResponse()));
+        });
+    }
+
+    // there's no asynchronous putIfAbsent, so these are written one at a time on the request thread
+    private void batchPutIfAbsent(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, String> writes = gson.fromJson(request.getReader(), WRITES_TYPE);
+        if (writes != null) {
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                if (write.getValue() != null) {
+                    store.putIfAbsent(write.getKey(), write.getValue());
+                }
+            }
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new SuccessResponse()));
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import com.google.gson.Gson;
+import server.responses.ChangesResponse;
+import server.responses.ErrorResponse;
+import store.ChangeFeed;
+import store.ChangeSource;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// ChangesServlet long-polls the change feed. Clients pass the segment and offset from their last response
+// and the request is held open for up to timeout milliseconds until there's at least one change. Without a
+// segment, the feed starts from the most recent write. A waiting request doesn't hold a Jetty thread, so idle
+// tailers can't starve the server
+public class ChangesServlet extends HttpServlet {
+    private static final long DEFAULT_TIMEOUT = 10000L;
+    private static final long MAXIMUM_TIMEOUT = 30000L;
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final int MAXIMUM_LIMIT = 10000;
+
+    private ChangeSource store;
+    private Gson gson = new Gson();
+
+    ChangesServlet(ChangeSource store) {
+        this.store = store;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+        response.setContentType("application/json");
+
+        ChangeFeed feed = store.changes();
+        ChangeFeed.Position position;
+        long timeout;
+        int limit;
+        try {
+            String segment = request.getParameter("segment");
+            if (segment == null) {
+                position = feed.head();
+            } else {
+                String offset = request.getParameter("offset");
+                position = new ChangeFeed.Position(segment, offset == null ? 0 : Integer.parseInt(offset));
+            }
+            timeout = Math.min(longParameter(request, "timeout", DEFAULT_TIMEOUT), MAXIMUM_TIMEOUT);
+            long requestedLimit = longParameter(request, "limit", DEFAULT_LIMIT);
+            if (requestedLimit < 1) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println(gson.toJson(new ErrorResponse("limit must be at least 1")));
+                return;
+            }
+            limit = (int) Math.min(requestedLimit, MAXIMUM_LIMIT);
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(
+                    new ErrorResponse("offset, timeout and limit must be numbers")));
+            return;
+        }
+
+        AsyncResponses.respond(request, response, feed.readAsync(position, limit, timeout), batch -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(gson.toJson(new ChangesResponse(batch)));
+        }, error -> {
+            if (!(error instanceof ChangeFeed.ExpiredPositionException)) {
+                return false;
+            }
+            response.setStatus(HttpServletResponse.SC_GONE);
+            response.getWriter().println(gson.toJson(new ErrorResponse(error.getMessage())));
+            return true;
+        });
+    }
+
+    private static long longParameter(HttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
@@ -5,20 +5,43 @@ import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import store.ChangeSource;
+import store.Namespaces;
+import store.Sampled;
 import store.Store;
 
 public class DBServer {
+    // values can be sent in a form-encoded POST body, which Jetty otherwise limits to 200KB
+    private static final int MAX_FORM_CONTENT_SIZE = 64 * 1024 * 1024;
+
     private Server server;
+    private ServerConnector connector;
+    // 0 picks a free port, see getPort
+    private int port = 8090;
     private Store store;
+    // null if the server doesn't serve namespaces
+    private Namespaces namespaces;
 
     public DBServer(Store store) {
+        this(store, null);
+    }
+
+    public DBServer(Store store, Namespaces namespaces) {
         this.store = store;
+        this.namespaces = namespaces;
     }
 
+    // run starts the server and blocks until it's stopped
     public void run() throws Exception {
+        start();
+        server.join();
+    }
+
+    public void start() throws Exception {
         server = new Server();
-        ServerConnector connector = new ServerConnector(server);
-        connector.setPort(8090);
+        server.setAttribute("org.eclipse.jetty.server.Request.maxFormContentSize", MAX_FORM_CONTENT_SIZE);
+        connector = new ServerConnector(server);
+        connector.setPort(port);
         server.setConnectors(new Connector[] { connector });
 
         ServletHandler servletHandler = new ServletHandler();
@@ -26,10 +49,42 @@ public class DBServer {
 
         DBServlet dbServlet = new DBServlet(store);
 
-        servletHandler.addServletWithMapping(new ServletHolder(dbServlet), "/");
+        ServletHolder dbServletHolder = new ServletHolder(dbServlet);
+        dbServletHolder.setAsyncSupported(true);
+        servletHandler.addServletWithMapping(dbServletHolder, "/");
+        servletHandler.addServletWithMapping(new ServletHolder(new ExportServlet(store)), "/export");
+        ServletHolder batchServletHolder = new ServletHolder(new BatchServlet(store));
+        batchServletHolder.setAsyncSupported(true);
+        servletHandler.addServletWithMapping(batchServletHolder, "/batch/*");
+        if (namespaces != null) {
+            ServletHolder namespaceServletHolder = new ServletHolder(new NamespaceServlet(namespaces));
+            namespaceServletHolder.setAsyncSupported(true);
+            servletHandler.addServletWithMapping(namespaceServletHolder, "/ns/*");
+        }
+        ServletHolder atomicServletHolder = new ServletHolder(new AtomicServlet(store));
+        servletHandler.addServletWithMapping(atomicServletHolder, "/cas");
+        servletHandler.addServletWithMapping(atomicServletHolder, "/putIfAbsent");
+        servletHandler.addServletWithMapping(atomicServletHolder, "/increment");
+        if (store instanceof ChangeSource) {
+            ServletHolder changesServletHolder = new ServletHolder(new ChangesServlet((ChangeSource) store));
+            changesServletHolder.setAsyncSupported(true);
+            servletHandler.addServletWithMapping(changesServletHolder, "/changes");
+        }
+        if (store instanceof Sampled) {
+            servletHandler.addServletWithMapping(new ServletHolder(new AccessStatsServlet((Sampled) store)), "/admin/access");
+        }
+        servletHandler.addServletWithMapping(new ServletHolder(new ReadinessServlet(store)), "/admin/ready");
 
         server.start();
-        server.join();
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    // getPort returns the port the server is listening on, once it's started
+    public int getPort() {
+        return connector.getLocalPort();
     }
 
     public void stop() throws Exception {
@@ -1,6 +1,7 @@
 package server;
 
 import com.google.gson.Gson;
+import org.eclipse.jetty.server.HttpOutput;
 import server.responses.ErrorResponse;
 import server.responses.SuccessResponse;
 import store.Store;
@@ -10,12 +11,18 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 import java.util.Set;
 
 public class DBServlet extends HttpServlet {
 
+    private static final String RAW_CONTENT_TYPE = "application/octet-stream";
+
     private Store store;
     private Gson gson = new Gson();
 
@@ -36,8 +43,13 @@ public class DBServlet extends HttpServlet {
             return;
         }
         String key = keys[0];
-        try {
-            String value = store.get(key);
+
+        if (acceptsRaw(request)) {
+            doGetRaw(key, response);
+            return;
+        }
+
+        AsyncResponses.respond(request, response, store.getAsync(key), value -> {
             if (value == null) {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 response.getWriter().println(gson.toJson(
@@ -46,11 +58,45 @@ public class DBServlet extends HttpServlet {
             }
             response.setStatus(HttpServletResponse.SC_OK);
             response.getWriter().println(gson.toJson(new GetResponse(key, value)));
+        });
+    }
+
+    private boolean acceptsRaw(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(RAW_CONTENT_TYPE);
+    }
+
+    // doGetRaw sends the value's bytes as they're stored, without decoding or JSON encoding them. Large values
+    // come back from the store as a mapping of the segment file, which Jetty writes straight to the socket
+    private void doGetRaw(String key, HttpServletResponse response) throws IOException {
+        ByteBuffer value;
+        try {
+            value = store.getBuffer(key);
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
         }
 
+        if (value == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println(gson.toJson(
+                    new ErrorResponse("key " + key + " not found")));
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(RAW_CONTENT_TYPE);
+        response.setContentLengthLong(value.remaining());
+
+        ServletOutputStream out = response.getOutputStream();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(value);
+            return;
+        }
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (value.hasRemaining()) {
+            channel.write(value);
+        }
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -76,15 +122,10 @@ public class DBServlet extends HttpServlet {
             return;
         }
 
-        try {
-            store.put(key, value);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw e;
-        }
-
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.getWriter().println(gson.toJson(new SuccessResponse()));
+        AsyncResponses.respond(request, response, store.putAsync(key, value), result -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(gson.toJson(new SuccessResponse()));
+        });
     }
 
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -100,9 +141,10 @@ public class DBServlet extends HttpServlet {
             return;
         }
         String key = keys[0];
-        store.delete(key);
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.getWriter().println(gson.toJson(new SuccessResponse()));
+        AsyncResponses.respond(request, response, store.deleteAsync(key), result -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(gson.toJson(new SuccessResponse()));
+        });
     }
 
 }
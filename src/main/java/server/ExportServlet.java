@@ -0,0 +1,50 @@
+package server;
+
+import com.google.gson.Gson;
+import server.responses.ExportRecord;
+import store.Store;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// ExportServlet streams every live key/value pair as newline-delimited JSON. The response has no content
+// length, so it's sent chunked as records are read. Segments are scanned in parallel unless
+// parallel=false is passed
+public class ExportServlet extends HttpServlet {
+
+    private Store store;
+    private Gson gson = new Gson();
+
+    ExportServlet(Store store) {
+        this.store = store;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+        response.setContentType("application/x-ndjson");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        boolean parallel = !"false".equals(request.getParameter("parallel"));
+        PrintWriter writer = response.getWriter();
+
+        try (Stream<Map.Entry<String, String>> records = store.scan()) {
+            Stream<Map.Entry<String, String>> stream = parallel ? records.parallel() : records;
+            stream.forEach(record -> {
+                String line = gson.toJson(new ExportRecord(record.getKey(), record.getValue()));
+                synchronized (writer) {
+                    writer.println(line);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package server;
+
+import com.google.gson.Gson;
+import server.responses.ErrorResponse;
+import server.responses.NamespacesResponse;
+import server.responses.SuccessResponse;
+import store.ChangeSource;
+import store.NamespaceConfig;
+import store.Namespaces;
+import store.Sampled;
+import store.Store;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// NamespaceServlet serves every endpoint of the server under /ns/<namespace>, against that namespace's store:
+// GET, POST and DELETE on /ns/<namespace> itself, and /ns/<namespace>/cas, /ns/<namespace>/batch/put,
+// /ns/<namespace>/export, /ns/<namespace>/changes, /ns/<namespace>/admin/ready and so on. PUT /ns/<namespace>
+// creates a namespace, taking any of the NamespaceConfig settings as parameters, and GET /ns/ lists them
+public class NamespaceServlet extends HttpServlet {
+
+    private Namespaces namespaces;
+    private Gson gson = new Gson();
+    // the servlets serving each namespace, by the path they're served at within it
+    private Map<Store, Map<String, HttpServlet>> endpoints = new ConcurrentHashMap<Store, Map<String, HttpServlet>>();
+
+    NamespaceServlet(Namespaces namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int separator = path.indexOf('/');
+        String name = separator < 0 ? path : path.substring(0, separator);
+        String endpoint = separator < 0 ? "" : path.substring(separator);
+
+        if (name.isEmpty() || "PUT".equals(request.getMethod()) && (endpoint.isEmpty() || endpoint.equals("/"))) {
+            super.service(request, response);
+            return;
+        }
+
+        response.setContentType("application/json");
+        Store store = namespaces.get(name);
+        if (store == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println(gson.toJson(new ErrorResponse("namespace " + name + " not found")));
+            return;
+        }
+
+        // the batch operations are the path after /batch, as for the servlet mapped at /batch/*
+        String servletPath = endpoint.startsWith("/batch/") ? "/batch" : endpoint.equals("/") ? "" : endpoint;
+        HttpServlet servlet = endpoints.computeIfAbsent(store, NamespaceServlet::servletsFor).get(servletPath);
+        if (servlet == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println(gson.toJson(new ErrorResponse("unknown endpoint " + endpoint)));
+            return;
+        }
+        String pathInfo = servletPath.equals("/batch") ? endpoint.substring(servletPath.length()) : null;
+        servlet.service(new HttpServletRequestWrapper(request) {
+            public String getServletPath() {
+                return servletPath;
+            }
+
+            public String getPathInfo() {
+                return pathInfo;
+            }
+        }, response);
+    }
+
+    // servletsFor makes the same servlets DBServer maps for its default store
+    private static Map<String, HttpServlet> servletsFor(Store store) {
+        Map<String, HttpServlet> servlets = new HashMap<String, HttpServlet>();
+        servlets.put("", new DBServlet(store));
+        servlets.put("/export", new ExportServlet(store));
+        servlets.put("/batch", new BatchServlet(store));
+        AtomicServlet atomicServlet = new AtomicServlet(store);
+        servlets.put("/cas", atomicServlet);
+        servlets.put("/putIfAbsent", atomicServlet);
+        servlets.put("/increment", atomicServlet);
+        if (store instanceof ChangeSource) {
+            servlets.put("/changes", new ChangesServlet((ChangeSource) store));
+        }
+        if (store instanceof Sampled) {
+            servlets.put("/admin/access", new AccessStatsServlet((Sampled) store));
+        }
+        servlets.put("/admin/ready", new ReadinessServlet(store));
+        return servlets;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new NamespacesResponse(new ArrayList<String>(namespaces.names()))));
+    }
+
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        String name = request.getPathInfo() == null ? "" : request.getPathInfo().replace("/", "");
+
+        NamespaceConfig config = new NamespaceConfig();
+        try {
+            if (request.getParameter("maximumFileSize") != null) {
+                config.maximumFileSize = Integer.parseInt(request.getParameter("maximumFileSize"));
+            }
+            if (request.getParameter("maximumSegmentAge") != null) {
+                config.maximumSegmentAge = Long.parseLong(request.getParameter("maximumSegmentAge"));
+            }
+            if (request.getParameter("compactionPeriod") != null) {
+                config.compactionPeriod = Long.parseLong(request.getParameter("compactionPeriod"));
+            }
+            if (request.getParameter("writeBufferInterval") != null) {
+                config.writeBufferInterval = Long.parseLong(request.getParameter("writeBufferInterval"));
+            }
+            namespaces.create(name, config);
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(gson.toJson(new ErrorResponse(e.getMessage())));
+            return;
+        } catch (IllegalStateException e) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().println(gson.toJson(new ErrorResponse(e.getMessage())));
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().println(gson.toJson(new ErrorResponse("could not create namespace " + name)));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(gson.toJson(new SuccessResponse()));
+    }
+}
@@ -0,0 +1,35 @@
+package server;
+
+import com.google.gson.Gson;
+import store.LoadStatus;
+import store.Store;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// ReadinessServlet reports whether the store has finished loading its index. It answers 503 until then,
+// so a load balancer can hold back traffic from a node that's still starting up
+public class ReadinessServlet extends HttpServlet {
+
+    private Store store;
+    private Gson gson = new Gson();
+
+    ReadinessServlet(Store store) {
+        this.store = store;
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+
+        LoadStatus status = store.loadStatus();
+        if (status.isReady()) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        response.getWriter().println(gson.toJson(status));
+    }
+}
@@ -0,0 +1,20 @@
+package server.responses;
+
+import java.util.Map;
+
+public class BatchGetResponse extends SuccessResponse {
+    // only the keys that are set
+    private Map<String, String> values;
+
+    public BatchGetResponse(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public void setValues(Map<String, String> values) {
+        this.values = values;
+    }
+}
@@ -0,0 +1,30 @@
+package server.responses;
+
+import store.ChangeFeed;
+
+import java.util.List;
+
+public class ChangesResponse extends SuccessResponse {
+    private List<ChangeFeed.Event> events;
+    // where to resume from on the next request
+    private String segment;
+    private int offset;
+
+    public ChangesResponse(ChangeFeed.Batch batch) {
+        this.events = batch.events;
+        this.segment = batch.next.segment;
+        this.offset = batch.next.offset;
+    }
+
+    public List<ChangeFeed.Event> getEvents() {
+        return events;
+    }
+
+    public String getSegment() {
+        return segment;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+}
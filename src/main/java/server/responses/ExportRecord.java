@@ -0,0 +1,19 @@
+package server.responses;
+
+public class ExportRecord {
+    private String key;
+    private String value;
+
+    public ExportRecord(String key, String value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,27 @@
+package server.responses;
+
+public class IncrementResponse extends SuccessResponse {
+    private String key;
+    private long value;
+
+    public IncrementResponse(String key, long value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,19 @@
+package server.responses;
+
+import java.util.List;
+
+public class NamespacesResponse extends SuccessResponse {
+    private List<String> namespaces;
+
+    public NamespacesResponse(List<String> namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    public List<String> getNamespaces() {
+        return namespaces;
+    }
+
+    public void setNamespaces(List<String> namespaces) {
+        this.namespaces = namespaces;
+    }
+}
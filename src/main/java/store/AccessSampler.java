@@ -0,0 +1,145 @@
+package store;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// AccessSampler keeps approximate access statistics that are cheap enough to leave on: one in every sampleRate
+// reads and writes is counted in a count-min sketch, and the keys with the highest estimates are kept as a
+// top-K list. Reads per segment are counted exactly, since that's a single striped counter increment.
+// Counts are scaled back up by the sample rate when reported
+public class AccessSampler {
+    private static final int TOP_KEYS = 20;
+
+    private volatile int sampleRate;
+    private volatile KeyCounter reads = new KeyCounter();
+    private volatile KeyCounter writes = new KeyCounter();
+    private Map<String, LongAdder> segmentReads = new ConcurrentHashMap<String, LongAdder>();
+
+    AccessSampler(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    void recordRead(String key, String segment) {
+        int rate = sampleRate;
+        if (rate <= 0) {
+            return;
+        }
+        segmentReads.computeIfAbsent(segment, s -> new LongAdder()).increment();
+        if (sampled(rate)) {
+            reads.add(key);
+        }
+    }
+
+    void recordWrite(String key) {
+        int rate = sampleRate;
+        if (rate > 0 && sampled(rate)) {
+            writes.add(key);
+        }
+    }
+
+    void removeSegment(String segment) {
+        segmentReads.remove(segment);
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public void reset() {
+        reads = new KeyCounter();
+        writes = new KeyCounter();
+        segmentReads.clear();
+    }
+
+    public Snapshot snapshot() {
+        int rate = Math.max(sampleRate, 1);
+        Map<String, Long> segments = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : segmentReads.entrySet()) {
+            segments.put(entry.getKey(), entry.getValue().sum());
+        }
+        return new Snapshot(sampleRate, reads.top(rate), writes.top(rate), segments);
+    }
+
+    private static boolean sampled(int rate) {
+        return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    private static class KeyCounter {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 4096;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+        // only touched on sampled accesses, so a lock here is cheap
+        private Map<String, Long> topKeys = new HashMap<String, Long>();
+
+        void add(String key) {
+            int hash = key.hashCode();
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, sketch.incrementAndGet(row * WIDTH + bucket(hash, row)));
+            }
+            offer(key, estimate);
+        }
+
+        private synchronized void offer(String key, long estimate) {
+            if (topKeys.containsKey(key) || topKeys.size() < TOP_KEYS) {
+                topKeys.put(key, estimate);
+                return;
+            }
+            Map.Entry<String, Long> smallest = null;
+            for (Map.Entry<String, Long> entry : topKeys.entrySet()) {
+                if (smallest == null || entry.getValue() < smallest.getValue()) {
+                    smallest = entry;
+                }
+            }
+            if (estimate > smallest.getValue()) {
+                topKeys.remove(smallest.getKey());
+                topKeys.put(key, estimate);
+            }
+        }
+
+        synchronized List<KeyCount> top(int rate) {
+            List<KeyCount> top = new ArrayList<KeyCount>();
+            for (Map.Entry<String, Long> entry : topKeys.entrySet()) {
+                top.add(new KeyCount(entry.getKey(), entry.getValue() * rate));
+            }
+            top.sort((a, b) -> Long.compare(b.count, a.count));
+            return top;
+        }
+
+        private static int bucket(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return (h & 0x7fffffff) % WIDTH;
+        }
+    }
+
+    public static class KeyCount {
+        public final String key;
+        // estimated number of accesses
+        public final long count;
+
+        KeyCount(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    public static class Snapshot {
+        public final int sampleRate;
+        public final List<KeyCount> topReads;
+        public final List<KeyCount> topWrites;
+        public final Map<String, Long> segmentReads;
+
+        Snapshot(int sampleRate, List<KeyCount> topReads, List<KeyCount> topWrites, Map<String, Long> segmentReads) {
+            this.sampleRate = sampleRate;
+            this.topReads = topReads;
+            this.topWrites = topWrites;
+            this.segmentReads = segmentReads;
+        }
+    }
+}
@@ -1,78 +1,173 @@
 package store;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.CRC32;
+import store.events.SegmentWriteEvent;
 
 public class ActiveSegment extends Segment {
-    private AtomicInteger offset = new AtomicInteger(0);
+    private AtomicInteger offset;
+    private long createdAt = System.currentTimeMillis();
+    // set once the segment has been rolled over. Writes to a closed segment are refused so the caller
+    // can retry against the new active segment
+    private boolean closed = false;
 
-    FileOutputStream outputStream;
-    DataOutputStream writer;
+    FileChannel channel;
+    // only set for buffered segments, see the constructor
+    private ByteBuffer writeBuffer;
 
     public ActiveSegment(File dataFile) throws IOException {
+        this(dataFile, 0);
+    }
+
+    // a non-zero bufferSize batches appends in memory until close. Reads through get() will not see
+    // buffered records, so this is only meant for segments that are written out in one pass, like bulk loads
+    ActiveSegment(File dataFile, int bufferSize) throws IOException {
         super(dataFile);
-        this.outputStream = new FileOutputStream(dataFile, true);
-        this.writer = new DataOutputStream(outputStream);
+        this.channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // we're appending, so offsets start from wherever the file currently ends
+        this.offset = new AtomicInteger((int) channel.size());
+        if (bufferSize > 0) {
+            this.writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
     }
 
-    private synchronized void writeRecord(CRC32 crc, ByteArrayOutputStream buf, int offsetChange) throws IOException {
-        writer.writeLong(crc.getValue());
-        buf.writeTo(writer);
-        while (true) {
-            int lastOffset = offset.get();
-            int nextOffset = lastOffset + offsetChange;
-            if (offset.compareAndSet(lastOffset, nextOffset)) {
-                return;
+    // writeRecord appends encoded records and returns the offset it was written at, or -1 if the segment is closed
+    private synchronized int writeRecord(ByteBuffer record) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        int recordOffset = offset.get();
+        int recordLength = record.remaining();
+        SegmentWriteEvent event = new SegmentWriteEvent();
+        event.begin();
+
+        if (writeBuffer != null) {
+            if (recordLength <= writeBuffer.remaining()) {
+                writeBuffer.put(record);
+                offset.set(recordOffset + recordLength);
+                commitWriteEvent(event, recordOffset, recordLength, true);
+                return recordOffset;
+            }
+            // flush what's buffered along with the record that didn't fit in a single gathering write
+            writeBuffer.flip();
+            ByteBuffer[] buffers = new ByteBuffer[] { writeBuffer, record };
+            while (writeBuffer.hasRemaining() || record.hasRemaining()) {
+                channel.write(buffers);
+            }
+            writeBuffer.clear();
+        } else {
+            while (record.hasRemaining()) {
+                channel.write(record);
             }
         }
-    }
 
-    public IndexRecord put(String key, String value) throws IOException {
+        offset.set(recordOffset + recordLength);
+        commitWriteEvent(event, recordOffset, recordLength, false);
+        return recordOffset;
+    }
 
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        DataOutputStream bufWriter = new DataOutputStream(buf);
+    private void commitWriteEvent(SegmentWriteEvent event, int recordOffset, int recordLength, boolean buffered) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.segment = getFileName();
+            event.offset = recordOffset;
+            event.bytes = recordLength;
+            event.buffered = buffered;
+            event.commit();
+        }
+    }
 
-        bufWriter.writeByte(0);
-        bufWriter.writeInt(key.getBytes().length);
-        int valueLength = value.getBytes().length;
-        bufWriter.writeInt(valueLength);
-        bufWriter.write(key.getBytes());
-        bufWriter.write(value.getBytes());
+    // put returns null if the segment has been closed
+    public IndexRecord put(String key, String value) throws IOException {
+        RecordEncoder encoder = RecordEncoder.get();
+        ByteBuffer record = encoder.encode(false, key, value);
+        int keyLength = encoder.keyLength();
+        int valueLength = encoder.valueLength();
+
+        int recordOffset = writeRecord(record);
+        if (recordOffset < 0) {
+            return null;
+        }
+        int valueOffset = recordOffset + RecordEncoder.HEADER_LENGTH + keyLength;
 
-        // TODO: make this not a magic number: it's the metadata length (1) + key length (4) + value length (4) + crc length (8)
-        int offsetChange = 17 + key.getBytes().length;
-        int valueOffset = offset.get() + offsetChange;
+        return new IndexRecord(dataFile.getName(), valueLength, valueOffset);
+    }
 
-        CRC32 crc = new CRC32();
-        crc.update(buf.toByteArray());
-        writeRecord(crc, buf, offsetChange + valueLength);
+    // putAll appends a batch of puts and deletes in a single write. A null value is a delete, whose entry in the
+    // returned array is also null. It returns null if the segment has been closed
+    IndexRecord[] putAll(List<String> keys, List<String> values) throws IOException {
+        RecordEncoder encoder = RecordEncoder.get();
+        encoder.beginBatch();
+        int[] valueOffsets = new int[keys.size()];
+        int[] valueLengths = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            String value = values.get(i);
+            int recordOffset = encoder.appendToBatch(value == null, keys.get(i), value == null ? "" : value);
+            valueOffsets[i] = recordOffset + RecordEncoder.HEADER_LENGTH + encoder.keyLength();
+            valueLengths[i] = encoder.valueLength();
+        }
 
-        return new IndexRecord(dataFile.getName(), valueLength, valueOffset);
+        int batchOffset = writeRecord(encoder.finishBatch());
+        if (batchOffset < 0) {
+            return null;
+        }
+        IndexRecord[] records = new IndexRecord[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            if (values.get(i) != null) {
+                records[i] = new IndexRecord(dataFile.getName(), valueLengths[i], batchOffset + valueOffsets[i]);
+            }
+        }
+        return records;
     }
 
-    public void delete(String key) throws IOException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        DataOutputStream bufWriter = new DataOutputStream(buf);
+    // putReference writes a record whose value is stored elsewhere, see ValueReference. It returns false if the
+    // segment has been closed
+    boolean putReference(String key, String reference) throws IOException {
+        return writeRecord(RecordEncoder.get().encode(RecordEncoder.REFERENCE, key, reference)) >= 0;
+    }
 
-        bufWriter.writeByte(1);
-        bufWriter.writeInt(key.length());
-        bufWriter.writeInt(0);
-        bufWriter.write(key.getBytes());
+    // append copies a record scanned from another segment without decoding or re-encoding it
+    IndexRecord append(SegmentScanner.Record record) throws IOException {
+        int recordOffset = writeRecord(record.raw());
+        if (recordOffset < 0) {
+            throw new IOException("segment " + getFileName() + " is closed");
+        }
+        int valueOffset = recordOffset + RecordEncoder.HEADER_LENGTH + record.keyLength();
 
-        CRC32 crc = new CRC32();
-        crc.update(buf.toByteArray());
+        return new IndexRecord(dataFile.getName(), record.valueLength(), valueOffset);
+    }
 
-        writeRecord(crc, buf, 17 + key.getBytes().length);
+    // delete returns false if the segment has been closed
+    public boolean delete(String key) throws IOException {
+        return writeRecord(RecordEncoder.get().encode(true, key, "")) >= 0;
     }
 
     public int getSize() {
         return offset.get();
     }
 
-    public void close() throws IOException {
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
         super.close();
-        outputStream.close();
+        if (writeBuffer != null) {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            writeBuffer.clear();
+        }
+        channel.close();
     }
 
 }
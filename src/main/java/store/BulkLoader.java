@@ -0,0 +1,167 @@
+package store;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// BulkLoader builds a data directory from a stream of key/value pairs without going through HashIndexStore.put.
+// The stream is cut into large chunks in the order it's read, and each chunk is written out as its own segment
+// and hint file on a pool of writer threads. Everything is written to a staging directory next to the target,
+// which is then renamed into place, so a store never sees a partially imported data directory.
+//
+// Keys that appear more than once keep the last value in the stream: duplicates within a chunk are dropped
+// before writing, and duplicates across chunks are resolved by segment order when the index is loaded.
+public class BulkLoader {
+    private File dataDir;
+    private long segmentSize = 64L * 1024L * 1024L;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int writeBufferSize = 1024 * 1024;
+
+    public BulkLoader(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    // load returns the number of segments written. dataDir must not exist yet or be empty
+    public int load(Iterator<Map.Entry<String, String>> records) throws IOException {
+        if (dataDir.exists() && !isEmptyDirectory(dataDir)) {
+            throw new IOException("data directory " + dataDir + " is not empty");
+        }
+
+        File stagingDir = new File(dataDir.getAbsoluteFile().getParentFile(),
+                "." + dataDir.getName() + ".import-" + System.currentTimeMillis());
+        if (!stagingDir.mkdirs()) {
+            throw new IOException("could not create staging directory " + stagingDir);
+        }
+
+        ExecutorService writers = Executors.newFixedThreadPool(parallelism);
+        // bounds how many chunks are held in memory while waiting for a writer
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<File>> chunks = new ArrayList<Future<File>>();
+        try {
+            Map<String, String> chunk = new LinkedHashMap<String, String>();
+            long chunkSize = 0;
+            while (records.hasNext()) {
+                Map.Entry<String, String> record = records.next();
+                // the segment keeps the key's position from its first put, so move it to the end
+                String previous = chunk.remove(record.getKey());
+                if (previous != null) {
+                    chunkSize -= recordSize(record.getKey(), previous);
+                }
+                chunk.put(record.getKey(), record.getValue());
+                chunkSize += recordSize(record.getKey(), record.getValue());
+
+                if (chunkSize >= segmentSize) {
+                    chunks.add(submitChunk(writers, inFlight, stagingDir, chunks.size(), chunk));
+                    chunk = new LinkedHashMap<String, String>();
+                    chunkSize = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(submitChunk(writers, inFlight, stagingDir, chunks.size(), chunk));
+            }
+
+            List<File> chunkFiles = new ArrayList<File>();
+            for (Future<File> future : chunks) {
+                chunkFiles.add(future.get());
+            }
+
+            nameSegments(chunkFiles);
+            adopt(stagingDir);
+            return chunkFiles.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("bulk load interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("bulk load failed", e.getCause());
+        } finally {
+            writers.shutdownNow();
+            deleteDirectory(stagingDir);
+        }
+    }
+
+    private Future<File> submitChunk(ExecutorService writers, Semaphore inFlight, File stagingDir,
+                                     int chunkNumber, Map<String, String> chunk) throws InterruptedException {
+        inFlight.acquire();
+        return writers.submit(() -> {
+            try {
+                return writeChunk(new File(stagingDir, "chunk-" + chunkNumber), chunk);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private File writeChunk(File chunkFile, Map<String, String> chunk) throws IOException {
+        chunkFile.createNewFile();
+        Map<String, IndexRecord> hintIndex = new HashMap<String, IndexRecord>();
+        ActiveSegment segment = new ActiveSegment(chunkFile, writeBufferSize);
+        try {
+            for (Map.Entry<String, String> record : chunk.entrySet()) {
+                hintIndex.put(record.getKey(), segment.put(record.getKey(), record.getValue()));
+            }
+        } finally {
+            segment.close();
+        }
+        new HintFile(new File(chunkFile.getAbsolutePath() + ".hint"), hintIndex).save();
+        return chunkFile;
+    }
+
+    // Segments are ordered by the timestamp in their name, so the chunks are given consecutive timestamps that
+    // end before the current time. That keeps them in stream order and ensures any active segment the store
+    // creates afterwards sorts after them
+    private void nameSegments(List<File> chunkFiles) throws IOException {
+        long firstTimestamp = System.currentTimeMillis() - chunkFiles.size();
+        for (int i = 0; i < chunkFiles.size(); i++) {
+            File chunkFile = chunkFiles.get(i);
+            String segmentName = Long.toString(firstTimestamp + i);
+            Files.move(chunkFile.toPath(), chunkFile.toPath().resolveSibling(segmentName));
+            Files.move(Paths.get(chunkFile.getAbsolutePath() + ".hint"),
+                    chunkFile.toPath().resolveSibling(segmentName + ".hint"));
+        }
+    }
+
+    private void adopt(File stagingDir) throws IOException {
+        if (dataDir.exists()) {
+            // an empty directory can't be atomically replaced, so remove it first
+            Files.delete(dataDir.toPath());
+        }
+        Files.move(stagingDir.toPath(), dataDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isEmptyDirectory(File dir) {
+        String[] contents = dir.list();
+        return contents != null && contents.length == 0;
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] contents = dir.listFiles();
+        if (contents == null) {
+            return;
+        }
+        for (File file : contents) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    // approximate on-disk size of a record: crc (8) + meta (1) + key length (4) + value length (4) + key + value
+    private static long recordSize(String key, String value) {
+        return 17 + key.length() + value.length();
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+}
@@ -0,0 +1,388 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ChangeFeed streams puts and deletes by tailing the segments they're appended to. A consumer reads from a
+// Position - a segment and an offset within it - and gets back the events after that position along with the
+// position to resume from next time.
+//
+// Only segments written by the store are followed, not the merged segments compaction produces, since those
+// only contain records that were already seen. A position in a segment that compaction has since removed
+// can't be resumed from and is reported with an ExpiredPositionException.
+public class ChangeFeed {
+    private HashIndexStore store;
+
+    // appendCount changes on every append, so a reader can tell whether it missed a notification
+    // between finding nothing to read and starting to wait
+    private AtomicLong appendCount = new AtomicLong();
+    private AtomicInteger waiters = new AtomicInteger();
+    private final Object appendSignal = new Object();
+
+    // readAsync's reads wait in pendingReads rather than on a thread. An append or a read's deadline has the
+    // poller thread read again, so however many readers are waiting they only ever take that one thread
+    private Queue<PendingRead> pendingReads = new ConcurrentLinkedQueue<PendingRead>();
+    private AtomicBoolean pollScheduled = new AtomicBoolean();
+    private ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-feed-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ChangeFeed(HashIndexStore store) {
+        this.store = store;
+    }
+
+    // head returns the position just past the most recent write, for consumers that only want new changes
+    public Position head() {
+        ActiveSegment segment = store.getActiveSegment();
+        return new Position(segment.getFileName(), segment.getSize());
+    }
+
+    // read returns up to maxEvents events after from. If there are none yet, it waits up to timeoutMillis
+    // for a write before returning an empty batch
+    public Batch read(Position from, int maxEvents, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Position position = from;
+        List<Event> events = new ArrayList<Event>();
+        while (true) {
+            long seenAppends = appendCount.get();
+            position = readAvailable(position, events, maxEvents);
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (!events.isEmpty() || remaining <= 0) {
+                return new Batch(events, position);
+            }
+            awaitAppend(seenAppends, remaining);
+        }
+    }
+
+    // readAsync is read without a thread waiting on it: the result completes once there are events after from,
+    // or with an empty batch after timeoutMillis
+    public CompletableFuture<Batch> readAsync(Position from, int maxEvents, long timeoutMillis) {
+        PendingRead read = new PendingRead(from, maxEvents);
+        try {
+            read.timeout = poller.schedule(() -> expire(read), timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            read.result.completeExceptionally(new IOException("store is closed"));
+            return read.result;
+        }
+        poll(read);
+        return read.result;
+    }
+
+    // poll reads what's available for a pending read and completes it if there's anything, or if it has expired.
+    // Otherwise it goes back to waiting. The caller must have claimed the read, by creating it or by removing it
+    // from pendingReads
+    private void poll(PendingRead read) {
+        try {
+            long seenAppends = appendCount.get();
+            List<Event> events = new ArrayList<Event>();
+            read.position = readAvailable(read.position, events, read.maxEvents);
+            if (!events.isEmpty() || read.expired) {
+                complete(read, new Batch(events, read.position));
+                return;
+            }
+
+            pendingReads.add(read);
+            // expire sets expired before trying to claim the read, so one of the two sees the other
+            if (read.expired) {
+                if (pendingReads.remove(read)) {
+                    poll(read);
+                }
+                return;
+            }
+            // an append between reading and queueing wouldn't have seen this read
+            if (appendCount.get() != seenAppends) {
+                schedulePoll();
+            }
+        } catch (Exception e) {
+            read.timeout.cancel(false);
+            read.result.completeExceptionally(e);
+        }
+    }
+
+    private void complete(PendingRead read, Batch batch) {
+        read.timeout.cancel(false);
+        read.result.complete(batch);
+    }
+
+    private void expire(PendingRead read) {
+        read.expired = true;
+        // removing the read claims it, so an append that's polling it at the same time leaves it alone
+        if (pendingReads.remove(read)) {
+            poll(read);
+        }
+    }
+
+    private void schedulePoll() {
+        if (pendingReads.isEmpty() || !pollScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            poller.execute(this::pollPending);
+        } catch (RejectedExecutionException e) {
+            pollScheduled.set(false);
+        }
+    }
+
+    private void pollPending() {
+        pollScheduled.set(false);
+        // reads that find nothing are queued again, so only poll the ones that were waiting to begin with
+        List<PendingRead> waiting = new ArrayList<PendingRead>(pendingReads);
+        for (PendingRead read : waiting) {
+            if (pendingReads.remove(read)) {
+                poll(read);
+            }
+        }
+    }
+
+    // close fails the reads still waiting, since the store won't be appended to any more
+    void close() {
+        poller.shutdownNow();
+        PendingRead read;
+        while ((read = pendingReads.poll()) != null) {
+            read.result.completeExceptionally(new IOException("store is closed"));
+        }
+    }
+
+    // subscribe delivers events from a background thread until the subscription is closed or the
+    // subscriber throws
+    public Subscription subscribe(Position from, Subscriber subscriber) {
+        Subscription subscription = new Subscription();
+        Thread thread = new Thread(() -> {
+            Position position = from;
+            try {
+                while (!subscription.closed) {
+                    Batch batch = read(position, 1000, 1000);
+                    for (Event event : batch.events) {
+                        subscriber.onEvent(event);
+                    }
+                    position = batch.next;
+                }
+            } catch (InterruptedException e) {
+                // closed while waiting
+            } catch (Exception e) {
+                if (!subscription.closed) {
+                    subscriber.onError(e);
+                }
+            }
+        }, "change-feed-subscriber");
+        thread.setDaemon(true);
+        subscription.thread = thread;
+        thread.start();
+        return subscription;
+    }
+
+    void notifyAppend() {
+        appendCount.incrementAndGet();
+        if (waiters.get() > 0) {
+            synchronized (appendSignal) {
+                appendSignal.notifyAll();
+            }
+        }
+        schedulePoll();
+    }
+
+    private void awaitAppend(long seenAppends, long timeoutMillis) throws InterruptedException {
+        waiters.incrementAndGet();
+        try {
+            synchronized (appendSignal) {
+                if (appendCount.get() == seenAppends) {
+                    appendSignal.wait(timeoutMillis);
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private Position readAvailable(Position position, List<Event> events, int maxEvents) throws IOException {
+        while (events.size() < maxEvents) {
+            File segmentFile = store.getSegmentFile(position.segment);
+            ActiveSegment active = store.getActiveSegment();
+            boolean isActive = active.getFileName().equals(position.segment);
+            // only read as far as writes to the active segment have completed
+            long end = isActive ? active.getSize() : segmentFile.length();
+            if (!segmentFile.exists()) {
+                throw new ExpiredPositionException(position);
+            }
+
+            if (position.offset < end) {
+                position = readSegment(segmentFile, position, end, events, maxEvents);
+                continue;
+            }
+            if (isActive) {
+                return position;
+            }
+
+            String nextSegment = nextSegment(position.segment);
+            if (nextSegment == null) {
+                return position;
+            }
+            position = new Position(nextSegment, 0);
+        }
+        return position;
+    }
+
+    private Position readSegment(File segmentFile, Position position, long end, List<Event> events,
+                                 int maxEvents) throws IOException {
+        int offset = position.offset;
+        try (SegmentScanner scanner = new SegmentScanner(segmentFile, 64 * 1024, offset, end)) {
+            SegmentScanner.Record record;
+            while (events.size() < maxEvents && (record = scanner.next()) != null) {
+                offset = record.nextOffset();
+                Position next = new Position(position.segment, offset);
+                if (record.isTombstone()) {
+                    events.add(new Event(record.key(), null, true, next));
+                } else if (record.isReference()) {
+                    // the deduplicated value may have been collected since, once nothing refers to it any more
+                    String value = store.readValue(record.indexRecord());
+                    if (value == null) {
+                        throw new ExpiredPositionException(position);
+                    }
+                    events.add(new Event(record.key(), value, false, next));
+                } else {
+                    events.add(new Event(record.key(), record.value(), false, next));
+                }
+            }
+        }
+        if (offset < end && events.size() < maxEvents) {
+            // the scanner stopped early on a bad record. Skip the rest of the segment rather than stalling on it
+            System.err.println("skipping unreadable records in segment " + position.segment + " from offset " + offset);
+            offset = (int) end;
+        }
+        return new Position(position.segment, offset);
+    }
+
+    // nextSegment returns the first segment written after segment, ignoring compacted segments
+    private String nextSegment(String segment) {
+        long segmentId = Long.parseLong(segment.split("-")[0]);
+        String next = null;
+        long nextId = Long.MAX_VALUE;
+        for (File file : store.listSegmentFiles(null)) {
+            String fileName = file.getName();
+            if (fileName.contains("-") || fileName.contains(".")) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(fileName);
+                if (id > segmentId && id < nextId) {
+                    next = fileName;
+                    nextId = id;
+                }
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        return next;
+    }
+
+    private static class PendingRead {
+        final int maxEvents;
+        final CompletableFuture<Batch> result = new CompletableFuture<Batch>();
+        // only touched by whichever thread has claimed the read
+        Position position;
+        ScheduledFuture<?> timeout;
+        volatile boolean expired = false;
+
+        PendingRead(Position from, int maxEvents) {
+            this.position = from;
+            this.maxEvents = maxEvents;
+        }
+    }
+
+    public static class Position {
+        public final String segment;
+        public final int offset;
+
+        public Position(String segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public String toString() {
+            return segment + ":" + offset;
+        }
+    }
+
+    public static class Event {
+        private String key;
+        // null for deletes
+        private String value;
+        private boolean deleted;
+        // the position just after this event, to resume from
+        private transient Position position;
+
+        Event(String key, String value, boolean deleted, Position position) {
+            this.key = key;
+            this.value = value;
+            this.deleted = deleted;
+            this.position = position;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public Position getPosition() {
+            return position;
+        }
+    }
+
+    public static class Batch {
+        public final List<Event> events;
+        public final Position next;
+
+        Batch(List<Event> events, Position next) {
+            this.events = events;
+            this.next = next;
+        }
+    }
+
+    public interface Subscriber {
+        void onEvent(Event event) throws Exception;
+
+        default void onError(Exception e) {
+            System.err.println("change feed subscriber stopped");
+            e.printStackTrace();
+        }
+    }
+
+    public static class Subscription implements AutoCloseable {
+        private volatile boolean closed = false;
+        private Thread thread;
+
+        public void close() {
+            closed = true;
+            thread.interrupt();
+        }
+    }
+
+    public static class ExpiredPositionException extends IOException {
+        public ExpiredPositionException(Position position) {
+            super("change feed position " + position + " is no longer available");
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package store;
+
+// ChangeSource is a store whose writes can be followed through a ChangeFeed
+public interface ChangeSource {
+    public ChangeFeed changes();
+}
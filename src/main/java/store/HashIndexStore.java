@@ -1,30 +1,139 @@
 package store;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.LocalTime;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import store.events.CompactionEvent;
+import store.events.IndexLoadEvent;
+import store.events.SegmentRolloverEvent;
+
+public class HashIndexStore implements Store, ChangeSource, Sampled, AutoCloseable {
+    // the next segment is opened in the background once the active segment is this full
+    private static final double PREPARE_NEXT_SEGMENT_FRACTION = 0.9;
 
-public class HashIndexStore implements Store, AutoCloseable {
     private Map<String, IndexRecord> index;
-    File dataDir;
-    private ActiveSegment activeSegment;
+    // segments are spread across every data directory. The first one is only special in that it's where
+    // a segment file is assumed to live if it can't be found in any of them
+    private List<File> dataDirs;
+    private SegmentPlacement segmentPlacement = SegmentPlacement.ROUND_ROBIN;
+    private AtomicInteger nextDataDir = new AtomicInteger();
+    // which data directory each segment was found in or allocated to
+    private Map<String, File> segmentLocations = new ConcurrentHashMap<String, File>();
+    private volatile ActiveSegment activeSegment;
+    private AtomicReference<NextSegment> nextSegment = new AtomicReference<NextSegment>();
+    private AtomicLong lastSegmentId;
+    private ScheduledExecutorService segmentRoller;
+    private ScheduledFuture<?> segmentAgeCheck;
+    private ChangeFeed changeFeed = new ChangeFeed(this);
+    private AccessSampler accessSampler = new AccessSampler(16);
     TimerTask switchSegmentTask;
+    private Timer compactionTimer;
+
+    static final int DEFAULT_MAXIMUM_FILE_SIZE = 1024 * 1000;
+    static final long DEFAULT_COMPACTION_PERIOD = 1000L * 60L * 30L;
+    static final long DEFAULT_LOAD_WAIT_TIMEOUT = 10L * 1000L;
+
+    private int maximumFileSize = DEFAULT_MAXIMUM_FILE_SIZE;
+    private long maximumSegmentAge = 0;
+    private long compactionPeriod = DEFAULT_COMPACTION_PERIOD;
+    private int compactionBufferSize = 1024 * 1024;
+    private long compactionGroupSize = 64L * 1024L * 1024L;
+    private int compactionParallelism = Runtime.getRuntime().availableProcessors();
+    private final Object compactionLock = new Object();
+    // values of at least this many characters are deduplicated, see ValueReference. 0 turns deduplication off
+    private int dedupThreshold = 0;
+    // the blob holding each deduplicated value, by hash
+    private Map<String, String> blobs = new ConcurrentHashMap<String, String>();
+    // writes of deduplicated values share this lock, and collecting unreferenced blobs takes it exclusively so that
+    // a blob can't be removed between a write finding it and the write reaching the index
+    private ReadWriteLock blobLock = new ReentrantReadWriteLock();
+    // blobs are only collected once the index is known to hold every live reference
+    private volatile boolean indexLoaded = false;
+
+    // the asynchronous operations run on ioExecutor. Writes are queued and appended in batches by one task at a
+    // time, and reads are queued per segment
+    private static final int MAX_WRITE_BATCH = 1024;
+    private ExecutorService ioExecutor;
+    private Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+    private AtomicBoolean writesScheduled = new AtomicBoolean();
+    private Map<String, ReadQueue> readQueues = new ConcurrentHashMap<String, ReadQueue>();
 
-    private int maximumFileSize = 1024 * 1000;
-    private long compactionPeriod = 1000L * 60L * 30L;
+    // every write of a key holds the key's lock, so a read-modify-write like compareAndSet can't have another
+    // write of the same key land between its read and its write. Keys share locks by hash
+    private static final int KEY_LOCK_STRIPES = 256;
+    private Lock[] keyLocks = new Lock[KEY_LOCK_STRIPES];
 
-    private Map<String, Segment>  segments = new HashMap<String, Segment>();
+    // writeBuffer holds the latest buffered write of each key when write buffering is on, see setWriteBufferInterval.
+    // Writers check writeBufferInterval under their key's lock, and setWriteBufferInterval changes it holding
+    // every key lock, so a write can't be buffered after buffering is turned off or overtake a buffered write
+    private static final int MAX_BUFFERED_KEYS = 64 * 1024;
+    private volatile long writeBufferInterval = 0;
+    private Map<String, PendingWrite> writeBuffer = new ConcurrentHashMap<String, PendingWrite>();
+    private ScheduledFuture<?> writeBufferFlush;
+    private AtomicBoolean writeBufferFlushRequested = new AtomicBoolean();
+    private final Object writeBufferLock = new Object();
+
+    // loadedKeys is only set while the index is loading, see load
+    private volatile Set<String> loadedKeys;
+    private volatile LoadStatus loadStatus = new LoadStatus(LoadStatus.State.READY, 0, 0);
+    private final Object loadProgress = new Object();
+    // a read of a key that may still turn up while the index loads gives up after loadWaitTimeout milliseconds.
+    // Asynchronous reads of such keys wait in loadWaiters and are retried by the loader as segments load, so they
+    // don't hold a store-io thread
+    private volatile long loadWaitTimeout = DEFAULT_LOAD_WAIT_TIMEOUT;
+    private Queue<PendingRead> loadWaiters = new ConcurrentLinkedQueue<PendingRead>();
+
+    private Map<String, Segment>  segments = new ConcurrentHashMap<String, Segment>();
 
     public HashIndexStore(File dataDir) throws Exception {
-        this.dataDir = dataDir;
+        this(Collections.singletonList(dataDir));
+    }
+
+    public HashIndexStore(List<File> dataDirs) throws Exception {
+        if (dataDirs.isEmpty()) {
+            throw new IllegalArgumentException("at least one data directory is required");
+        }
+        this.dataDirs = new ArrayList<File>(dataDirs);
+        this.lastSegmentId = new AtomicLong(latestSegmentId());
+        this.segmentRoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-roller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        this.ioExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "store-io");
+            thread.setDaemon(true);
+            return thread;
+        });
         this.activeSegment = new ActiveSegment(newSegmentFile());
         this.setIndex(new ConcurrentHashMap<String, IndexRecord>());
     }
 
+    // scheduleCompaction compacts every compactionPeriod milliseconds until the store is closed. A period of 0
+    // leaves compaction to explicit calls to doCompaction
     public void scheduleCompaction() {
+        if (compactionPeriod <= 0) {
+            return;
+        }
         switchSegmentTask = new TimerTask() {
             public void run() {
                 try {
@@ -36,21 +145,110 @@ public class HashIndexStore implements Store, AutoCloseable {
             }
         };
 
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(switchSegmentTask, compactionPeriod, compactionPeriod);
+        compactionTimer = new Timer();
+        compactionTimer.scheduleAtFixedRate(switchSegmentTask, compactionPeriod, compactionPeriod);
     }
 
+    // getSegmentFile returns where the named segment lives, in whichever data directory that is
     public File getSegmentFile(String fileName) {
-        return Paths.get(dataDir.getAbsolutePath(), fileName).toFile();
+        File segmentFile = segmentLocations.get(fileName);
+        if (segmentFile != null) {
+            return segmentFile;
+        }
+        for (File dataDir : dataDirs) {
+            segmentFile = Paths.get(dataDir.getAbsolutePath(), fileName).toFile();
+            if (segmentFile.exists()) {
+                segmentLocations.put(fileName, segmentFile);
+                return segmentFile;
+            }
+        }
+        return Paths.get(dataDirs.get(0).getAbsolutePath(), fileName).toFile();
     }
 
-    public File newSegmentFile() throws IOException {
-        long unixTime = System.currentTimeMillis();
-        File segmentFile = getSegmentFile(Long.toString(unixTime));
-        segmentFile.createNewFile();
+    // allocateSegmentFile picks a data directory for a segment that's about to be written
+    private File allocateSegmentFile(String fileName) {
+        File dataDir = dataDirs.get(0);
+        if (dataDirs.size() > 1) {
+            if (segmentPlacement == SegmentPlacement.FREE_SPACE) {
+                for (File candidate : dataDirs) {
+                    if (candidate.getUsableSpace() > dataDir.getUsableSpace()) {
+                        dataDir = candidate;
+                    }
+                }
+            } else {
+                dataDir = dataDirs.get(Math.floorMod(nextDataDir.getAndIncrement(), dataDirs.size()));
+            }
+        }
+        File segmentFile = Paths.get(dataDir.getAbsolutePath(), fileName).toFile();
+        segmentLocations.put(fileName, segmentFile);
         return segmentFile;
     }
 
+    // listSegmentFiles lists the files accepted by filter in every data directory
+    File[] listSegmentFiles(FilenameFilter filter) {
+        List<File> segmentFiles = new ArrayList<File>();
+        for (File dataDir : dataDirs) {
+            File[] files = dataDir.listFiles(filter);
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                // skips the blobs directory
+                if (file.isFile()) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        return segmentFiles.toArray(new File[0]);
+    }
+
+    public File newSegmentFile() throws IOException {
+        while (true) {
+            File segmentFile = allocateSegmentFile(Long.toString(nextSegmentId()));
+            if (segmentFile.createNewFile()) {
+                return segmentFile;
+            }
+        }
+    }
+
+    // segment ids are timestamps, but they're also kept strictly increasing so that two segments
+    // created in the same millisecond, or after the clock goes backwards, still sort in creation order
+    private long nextSegmentId() {
+        return lastSegmentId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    private long latestSegmentId() {
+        long latest = 0;
+        for (File file : listSegmentFiles(null)) {
+            try {
+                latest = Math.max(latest, Long.parseLong(file.getName().split("[-.]")[0]));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        // blobs take their ids from the same sequence, and a collected blob's name mustn't be reused
+        for (File file : listBlobFiles()) {
+            String name = file.getName();
+            try {
+                latest = Math.max(latest, Long.parseLong(name.substring(name.lastIndexOf('-') + 1)));
+            } catch (NumberFormatException e) {
+                // not a blob
+            }
+        }
+        return latest;
+    }
+
+    private List<File> listBlobFiles() {
+        List<File> blobFiles = new ArrayList<File>();
+        for (File dataDir : dataDirs) {
+            File[] files = new File(dataDir, ValueReference.BLOB_DIRECTORY).listFiles();
+            if (files != null) {
+                Collections.addAll(blobFiles, files);
+            }
+        }
+        return blobFiles;
+    }
+
     public static void sortSegments(File[] segments) {
         Arrays.sort(segments, new Comparator<File>() {
             public int compare(File f1, File f2) {
@@ -75,104 +273,1020 @@ public class HashIndexStore implements Store, AutoCloseable {
     }
 
     private Segment getSegment(String segmentFile) throws IOException {
-        if (segments.containsKey(segmentFile)) {
-            return segments.get(segmentFile);
+        Segment segment = segments.get(segmentFile);
+        if (segment != null) {
+            return segment;
+        }
+        segment = new Segment(getSegmentFile(segmentFile), segmentFile);
+        Segment existing = segments.putIfAbsent(segmentFile, segment);
+        if (existing != null) {
+            segment.close();
+            return existing;
+        }
+        // checked after the segment is in the map, so either this sees a rollover of it or the rollover sees it
+        if (!isActiveSegment(segmentFile)) {
+            segment.seal();
         }
-        Segment segment = new Segment(getSegmentFile(segmentFile));
-        segments.put(segmentFile, segment);
         return segment;
     }
 
+    // acquireSegment returns null if the record's segment has been retired by compaction. Blobs are opened for
+    // each read and closed again by releaseSegment rather than kept in segments, since there can be far more of
+    // them than the store could keep files open for
+    Segment acquireSegment(IndexRecord record) throws IOException {
+        if (ValueReference.isBlob(record.fileName)) {
+            try {
+                return new Segment(getSegmentFile(record.fileName), record.fileName);
+            } catch (FileNotFoundException e) {
+                // collected since the index was read
+                return null;
+            }
+        }
+        Segment segment = segments.get(record.fileName);
+        if (segment == null) {
+            // retired segments stay in the map until their files are deleted, so a missing file here
+            // means the segment has already been reclaimed
+            if (!getSegmentFile(record.fileName).exists()) {
+                return null;
+            }
+            segment = getSegment(record.fileName);
+        }
+        return segment.acquire() ? segment : null;
+    }
+
+    void releaseSegment(Segment segment) throws IOException {
+        if (ValueReference.isBlob(segment.getFileName())) {
+            segment.close();
+            return;
+        }
+        if (segment.release()) {
+            segments.remove(segment.getFileName(), segment);
+        }
+    }
+
+    private void retireSegment(Segment segment) throws IOException {
+        accessSampler.removeSegment(segment.getFileName());
+        // a read already queued on it still runs, and finds the segment retired
+        readQueues.remove(segment.getFileName());
+        segmentLocations.remove(segment.getFileName());
+        if (segment.retire()) {
+            segments.remove(segment.getFileName(), segment);
+        }
+    }
+
     private Segment getSegment(File segmentFile) throws IOException {
         return getSegment(segmentFile.getName());
     }
 
+    // loadIndex rebuilds the index from the segments on disk and returns once it's complete
     public void loadIndex() throws IOException {
-        File[] segments = dataDir.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return pathname.isFile() && !pathname.getName().endsWith("hint");
+        load(beginLoad(false), false);
+    }
+
+    // loadIndexInBackground rebuilds the index on a background thread so the store can take traffic straight away.
+    // Writes go to the fresh active segment as usual. A read of a key that isn't in the index yet waits until
+    // the key is found or loading finishes, and loadStatus reports progress for anything routing traffic here
+    public void loadIndexInBackground() throws IOException {
+        File[] segmentFiles = beginLoad(true);
+        Thread loader = new Thread(() -> {
+            try {
+                load(segmentFiles, true);
+            } catch (Exception e) {
+                System.err.println("could not load index");
+                e.printStackTrace();
             }
-        });
-        HashIndexStore.sortSegments(segments);
+        }, "index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
 
-        // load all the segments in order, then create a new file for this segment
+    private File[] beginLoad(boolean background) throws IOException {
+        File[] segmentFiles = getSegmentFiles(false);
+        synchronized (loadProgress) {
+            loadedKeys = background ? ConcurrentHashMap.<String>newKeySet() : null;
+            loadStatus = new LoadStatus(LoadStatus.State.LOADING, 0, segmentFiles.length);
+        }
+        return segmentFiles;
+    }
+
+    // in the background, segments are loaded newest first, so the first version of a key that's found is the current
+    // one and can be served straight away. loadedKeys holds every key whose current version is known, either from
+    // loading or because it was written since loading started, and older versions of those keys are skipped.
+    // Otherwise segments are simply replayed oldest first, which doesn't need to keep every key in memory
+    // and so also works for a SpillableIndex
+    private void load(File[] segmentFiles, boolean background) throws IOException {
         LocalTime loadStartTime = LocalTime.now();
+        IndexLoadEvent event = new IndexLoadEvent();
+        event.begin();
+        try {
+            for (int loaded = 0; loaded < segmentFiles.length; loaded++) {
+                loadSegment(segmentFiles[background ? segmentFiles.length - 1 - loaded : loaded]);
+                setLoadStatus(LoadStatus.State.LOADING, loaded + 1, segmentFiles.length);
+            }
+        } catch (IOException | RuntimeException e) {
+            setLoadStatus(LoadStatus.State.FAILED, loadStatus.segmentsLoaded, segmentFiles.length);
+            commitLoadEvent(event, segmentFiles.length, background, false);
+            throw e;
+        }
+        for (IndexRecord record : index.values()) {
+            if (ValueReference.isBlob(record.fileName)) {
+                blobs.putIfAbsent(ValueReference.blobHash(record.fileName), record.fileName);
+            }
+        }
+        indexLoaded = true;
+        setLoadStatus(LoadStatus.State.READY, segmentFiles.length, segmentFiles.length);
+        commitLoadEvent(event, segmentFiles.length, background, true);
+        Duration loadTime = Duration.between(loadStartTime, LocalTime.now());
 
-        for (File segmentFile : segments) {
+        System.out.printf("loaded segments in %s\n", loadTime);
+    }
+
+    private void commitLoadEvent(IndexLoadEvent event, int segments, boolean background, boolean succeeded) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.segments = segments;
+            event.keys = index.size();
+            event.background = background;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    private void loadSegment(File segmentFile) throws IOException {
+        // keys map to null for deletes, which need to hide the key's older versions too
+        Map<String, IndexRecord> segmentIndex = new HashMap<String, IndexRecord>();
+        boolean hinted = false;
+        try {
+            HintFile hint = new HintFile(new File(segmentFile.getAbsolutePath() + ".hint"));
+            hinted = hint.load(segmentIndex);
+        } catch (IOException e) {
+            System.err.println("unable to load hint for segment " + segmentFile.getName() + ". Using data file");
+            e.printStackTrace();
+        }
+
+        if (hinted) {
+            System.out.println("loaded segment file " + segmentFile.getName() + " from hint file");
+        } else {
+            segmentIndex.clear();
+            getSegment(segmentFile).walk((key, record) -> segmentIndex.put(key, record));
+            System.out.println("loaded segment file " + segmentFile.getName() + " from data file");
+        }
+
+        Collection<Map.Entry<String, IndexRecord>> entries = segmentIndex.entrySet();
+        if (index instanceof SpillableIndex) {
+            List<Map.Entry<String, IndexRecord>> sorted = new ArrayList<Map.Entry<String, IndexRecord>>(entries);
+            sorted.sort(Map.Entry.comparingByKey(((SpillableIndex) index).bucketOrder()));
+            entries = sorted;
+        }
+
+        Set<String> loaded = loadedKeys;
+        for (Map.Entry<String, IndexRecord> entry : entries) {
+            if (loaded == null) {
+                if (entry.getValue() == null) {
+                    index.remove(entry.getKey());
+                } else {
+                    index.put(entry.getKey(), entry.getValue());
+                }
+                continue;
+            }
+            // claiming the key and installing it happen together, so a write or delete that comes in between can't
+            // be overwritten by this older version
+            index.compute(entry.getKey(), (key, current) -> loaded.add(key) ? entry.getValue() : current);
+        }
+    }
+
+    private void setLoadStatus(LoadStatus.State state, int segmentsLoaded, int segmentsTotal) {
+        synchronized (loadProgress) {
+            loadStatus = new LoadStatus(state, segmentsLoaded, segmentsTotal);
+            if (state != LoadStatus.State.LOADING) {
+                loadedKeys = null;
+            }
+            loadProgress.notifyAll();
+        }
+        retryLoadWaiters();
+    }
+
+    public LoadStatus loadStatus() {
+        return loadStatus;
+    }
+
+    // awaitKey waits while a key that isn't in the index could still turn up in a segment that hasn't been
+    // loaded yet, for up to loadWaitTimeout. It returns false if there was nothing to wait for
+    private boolean awaitKey(String key) throws IOException {
+        Set<String> loaded = loadedKeys;
+        if (loaded == null || loaded.contains(key)) {
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loadWaitTimeout);
+        synchronized (loadProgress) {
+            while (loadedKeys == loaded && !loaded.contains(key)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new IOException("timed out waiting for the index to load key " + key);
+                }
+                waitForLoadProgress(remaining);
+            }
+        }
+        return true;
+    }
+
+    // awaitKeyAsync completes with the key's value once the loader has found it or finished loading
+    private CompletableFuture<String> awaitKeyAsync(String key) {
+        PendingRead waiter = new PendingRead(key, null);
+        loadWaiters.add(waiter);
+        // the loader may have finished or found the key before the waiter was queued, and wouldn't retry it
+        Set<String> loaded = loadedKeys;
+        if (loaded == null || loaded.contains(key)) {
+            retryLoadWaiter(waiter);
+        }
+        waiter.result.whenComplete((value, error) -> loadWaiters.remove(waiter));
+        return waiter.result.orTimeout(loadWaitTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void retryLoadWaiters() {
+        Set<String> loaded = loadedKeys;
+        for (PendingRead waiter : loadWaiters) {
+            if (loaded == null || loaded.contains(waiter.key)) {
+                retryLoadWaiter(waiter);
+            }
+        }
+    }
+
+    private void retryLoadWaiter(PendingRead waiter) {
+        // removing the waiter claims it, so it's only retried once
+        if (loadWaiters.remove(waiter)) {
+            getAsync(waiter.key).whenComplete((value, error) -> {
+                if (error != null) {
+                    waiter.result.completeExceptionally(error);
+                } else {
+                    waiter.result.complete(value);
+                }
+            });
+        }
+    }
+
+    private void awaitLoad() throws IOException {
+        synchronized (loadProgress) {
+            while (loadedKeys != null) {
+                waitForLoadProgress();
+            }
+        }
+    }
+
+    private void waitForLoadProgress() throws IOException {
+        waitForLoadProgress(0);
+    }
+
+    private void waitForLoadProgress(long timeout) throws IOException {
+        try {
+            loadProgress.wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the index to load");
+        }
+    }
+
+    // markWritten records that key has been written while the index is loading, so the loader leaves it alone.
+    // It has to happen before the write reaches the index
+    private void markWritten(String key) {
+        Set<String> loaded = loadedKeys;
+        if (loaded != null) {
+            loaded.add(key);
+        }
+    }
+
+    public String get(String key) throws IOException {
+        PendingWrite buffered = writeBuffer.get(key);
+        if (buffered != null) {
+            return buffered.value;
+        }
+        return read(key, Segment::get);
+    }
+
+    public ByteBuffer getBuffer(String key) throws IOException {
+        PendingWrite buffered = writeBuffer.get(key);
+        if (buffered != null) {
+            return buffered.value == null ? null : ByteBuffer.wrap(buffered.value.getBytes());
+        }
+        return read(key, Segment::getBuffer);
+    }
+
+    private <T> T read(String key, ValueReader<T> reader) throws IOException {
+        while (true) {
+            IndexRecord record = index.get(key);
+            if (record == null) {
+                if (awaitKey(key)) {
+                    continue;
+                }
+                return null;
+            }
+
+            Segment segment = acquireSegment(record);
+            if (segment == null) {
+                // compaction moved the record and retired its segment after we read the index, so try again
+                if (record.equals(index.get(key))) {
+                    throw new FileNotFoundException("segment " + record.fileName + " for key " + key + " is missing");
+                }
+                continue;
+            }
+            accessSampler.recordRead(key, record.fileName);
             try {
-                HintFile hint = new HintFile(new File(segmentFile.getAbsolutePath() + ".hint"));
-                if (hint.load(index)) {
-                    System.out.println("loaded segment file " + segmentFile.getName() + " from hint file");
+                return reader.read(segment, record);
+            } finally {
+                releaseSegment(segment);
+            }
+        }
+    }
+
+    // scan takes a snapshot of the index and streams its live key/value pairs. Values are read in segment and
+    // offset order, and the stream splits per segment so a parallel stream reads each segment sequentially.
+    // The stream holds a reference to the segment it's reading, so it should be closed if not fully consumed
+    public Stream<Map.Entry<String, String>> scan() throws IOException {
+        awaitLoad();
+        flushWriteBuffer();
+        Map<String, List<Map.Entry<String, IndexRecord>>> segmentRecords = new HashMap<String, List<Map.Entry<String, IndexRecord>>>();
+        for (Map.Entry<String, IndexRecord> entry : index.entrySet()) {
+            segmentRecords.computeIfAbsent(entry.getValue().fileName, k -> new ArrayList<Map.Entry<String, IndexRecord>>())
+                    .add(new AbstractMap.SimpleImmutableEntry<String, IndexRecord>(entry.getKey(), entry.getValue()));
+        }
+
+        List<ScanSpliterator.SegmentScan> scans = new ArrayList<ScanSpliterator.SegmentScan>();
+        for (List<Map.Entry<String, IndexRecord>> records : segmentRecords.values()) {
+            records.sort(Comparator.comparingInt(entry -> entry.getValue().valueOffset));
+            scans.add(new ScanSpliterator.SegmentScan(records));
+        }
+
+        return StreamSupport.stream(new ScanSpliterator(this, scans, 0, scans.size()), false)
+                .onClose(() -> {
+                    try {
+                        closeScans(scans);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private void closeScans(List<ScanSpliterator.SegmentScan> scans) throws IOException {
+        for (ScanSpliterator.SegmentScan scan : scans) {
+            scan.close(this);
+        }
+    }
+
+    public void put(String key, String value) throws IOException {
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            putLocked(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void putLocked(String key, String value) throws IOException {
+        if (writeBufferInterval > 0) {
+            bufferWrite(new PendingWrite(key, value));
+            return;
+        }
+        markWritten(key);
+        accessSampler.recordWrite(key);
+        if (isDeduplicated(value)) {
+            putDeduplicated(key, value);
+            return;
+        }
+        while (true) {
+            ActiveSegment segment = activeSegment;
+            IndexRecord record = segment.put(key, value);
+            if (record == null) {
+                // the segment was rolled over before we could write to it, so use the new one
+                continue;
+            }
+
+            index.put(key, record);
+            changeFeed.notifyAppend();
+            checkSegmentSize(segment);
+            return;
+        }
+    }
+
+    private boolean isDeduplicated(String value) {
+        return dedupThreshold > 0 && value != null && value.length() >= dedupThreshold;
+    }
+
+    // putDeduplicated stores the value in a blob, reusing the existing one if the same value has been written
+    // before, and writes a record that refers to it
+    private void putDeduplicated(String key, String value) throws IOException {
+        byte[] bytes = value.getBytes();
+        String hash = ValueReference.hash(bytes);
+
+        blobLock.readLock().lock();
+        try {
+            String blobName = blobs.get(hash);
+            if (blobName == null) {
+                blobName = writeBlob(hash, bytes);
+                // a concurrent write of the same value may have beaten us to it, in which case this key keeps its own
+                // copy and later writes use the other one
+                blobs.putIfAbsent(hash, blobName);
+            }
+            String reference = ValueReference.encode(blobName, bytes.length);
+
+            while (true) {
+                ActiveSegment segment = activeSegment;
+                if (!segment.putReference(key, reference)) {
                     continue;
                 }
-                System.out.println("loaded segment file " + segmentFile.getName() + " from index file");
-            } catch (IOException e) {
-                System.err.println("unable to load hint for segment " + segmentFile.getName() + ". Using data file");
-                e.printStackTrace();
+
+                index.put(key, new IndexRecord(blobName, bytes.length, 0));
+                changeFeed.notifyAppend();
+                checkSegmentSize(segment);
+                return;
             }
+        } finally {
+            blobLock.readLock().unlock();
+        }
+    }
 
-            Segment segment = getSegment(segmentFile);
-            segment.load(index);
+    // writeBlob writes the value out under a new blob name. The blob only appears under its name once it's complete
+    private String writeBlob(String hash, byte[] value) throws IOException {
+        String blobName = ValueReference.blobName(hash, nextSegmentId());
+        File blobFile = allocateSegmentFile(blobName);
+        blobFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(hash, ".tmp", blobFile.getParentFile());
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(value);
+            }
+            Files.move(tempFile.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
         }
-        Duration loadTime = Duration.between(loadStartTime, LocalTime.now());
+        return blobName;
+    }
 
-        System.out.printf("loaded segments in %s\n", loadTime);
+    // readValue reads a value the index may no longer point to, returning null if it's been removed
+    String readValue(IndexRecord record) throws IOException {
+        Segment segment = acquireSegment(record);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return segment.get(record);
+        } finally {
+            releaseSegment(segment);
+        }
     }
 
-    public String get(String key) throws IOException {
+    public void delete(String key) throws IOException {
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            deleteLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteLocked(String key) throws IOException {
+        if (writeBufferInterval > 0) {
+            bufferWrite(new PendingWrite(key, null));
+            return;
+        }
+        markWritten(key);
+        while (true) {
+            ActiveSegment segment = activeSegment;
+            if (!segment.delete(key)) {
+                continue;
+            }
+
+            index.remove(key);
+            changeFeed.notifyAppend();
+            checkSegmentSize(segment);
+            return;
+        }
+    }
+
+    // compareAndSet sets key to value if its current value is expected, where a null expected value means the key
+    // must not be set. It returns whether the value was set. Like putIfAbsent and increment, it waits for a background
+    // load to find the key before taking the key's lock, so a slow load doesn't hold up other writes on the stripe
+    public boolean compareAndSet(String key, String expected, String value) throws IOException {
+        awaitKey(key);
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            if (!Objects.equals(get(key), expected)) {
+                return false;
+            }
+            putLocked(key, value);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // putIfAbsent sets key to value if it isn't set, returning null if it did and the current value if it didn't
+    public String putIfAbsent(String key, String value) throws IOException {
+        awaitKey(key);
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            String current = get(key);
+            if (current == null) {
+                putLocked(key, value);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // increment adds delta to the number stored at key, treating a key that isn't set as 0, and returns the new
+    // value. It throws NumberFormatException if the current value isn't a whole number
+    public long increment(String key, long delta) throws IOException {
+        awaitKey(key);
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            String current = get(key);
+            long value = (current == null ? 0 : Long.parseLong(current)) + delta;
+            putLocked(key, Long.toString(value));
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lock keyLock(String key) {
+        return keyLocks[keyLockStripe(key)];
+    }
+
+    private static int keyLockStripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (KEY_LOCK_STRIPES - 1);
+    }
+
+    // getAsync queues the read with any others waiting on the same segment, so a burst of reads is served in
+    // offset order by a single pass over the segment
+    public CompletableFuture<String> getAsync(String key) {
+        PendingWrite buffered = writeBuffer.get(key);
+        if (buffered != null) {
+            return CompletableFuture.completedFuture(buffered.value);
+        }
         IndexRecord record = index.get(key);
         if (record == null) {
-            return null;
+            Set<String> loaded = loadedKeys;
+            if (loaded != null && !loaded.contains(key)) {
+                // the key may still turn up while the index loads
+                return awaitKeyAsync(key);
+            }
+            return CompletableFuture.completedFuture(null);
         }
 
-        // TODO: probably have a cache of the segments that exist?
-        return getSegment(record.fileName).get(record);
+        PendingRead read = new PendingRead(key, record);
+        readQueues.computeIfAbsent(record.fileName, ReadQueue::new).add(read);
+        return read.result;
     }
 
-    public void put(String key, String value) throws IOException {
-        IndexRecord record = activeSegment.put(key, value);
+    // putAsync and deleteAsync queue the write. Writes that are queued together are appended to the active
+    // segment in one write, and complete once they're in the segment and the index
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        return queueWrite(new PendingWrite(key, value));
+    }
 
-        index.put(key, record);
-        if (activeSegment.getSize() > maximumFileSize) {
-            setNewActiveSegment();
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return queueWrite(new PendingWrite(key, null));
+    }
+
+    private CompletableFuture<Void> queueWrite(PendingWrite write) {
+        if (writeBufferInterval > 0) {
+            Lock lock = keyLock(write.key);
+            lock.lock();
+            try {
+                // buffering may have been turned off while we waited for the lock
+                if (writeBufferInterval > 0) {
+                    return bufferWrite(write);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (write.value != null) {
+            accessSampler.recordWrite(write.key);
         }
+        pendingWrites.add(write);
+        scheduleWrites();
+        return write.result;
     }
 
-    public void delete(String key) throws IOException {
-        activeSegment.delete(key);
-        index.remove(key);
+    private void scheduleWrites() {
+        if (pendingWrites.isEmpty() || !writesScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ioExecutor.execute(this::writeBatches);
+        } catch (RejectedExecutionException e) {
+            // the store is closing
+            PendingWrite write;
+            while ((write = pendingWrites.poll()) != null) {
+                write.result.completeExceptionally(new IOException("store is closed"));
+            }
+            writesScheduled.set(false);
+        }
+    }
+
+    // writeBatches writes out what's been queued in batches until the queue is empty. Writes queued while a batch
+    // is being written make up the next one
+    private void writeBatches() {
+        try {
+            while (!pendingWrites.isEmpty()) {
+                writeBatch();
+            }
+        } finally {
+            writesScheduled.set(false);
+            scheduleWrites();
+        }
+    }
+
+    private void writeBatch() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        PendingWrite write;
+        while (batch.size() < MAX_WRITE_BATCH && (write = pendingWrites.poll()) != null) {
+            batch.add(write);
+        }
+
+        try {
+            writeAll(batch);
+        } catch (Throwable e) {
+            for (PendingWrite pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // writeAll appends writes in order and completes them. Deduplicated values are written on their own, so the
+    // writes are split around them
+    private void writeAll(List<PendingWrite> writes) throws IOException {
+        List<PendingWrite> run = new ArrayList<PendingWrite>();
+        for (PendingWrite pending : writes) {
+            if (isDeduplicated(pending.value)) {
+                appendAll(run);
+                run.clear();
+                Lock lock = keyLock(pending.key);
+                lock.lock();
+                try {
+                    markWritten(pending.key);
+                    putDeduplicated(pending.key, pending.value);
+                } finally {
+                    lock.unlock();
+                }
+                pending.result.complete(null);
+            } else {
+                run.add(pending);
+            }
+        }
+        appendAll(run);
+    }
+
+    private void appendAll(List<PendingWrite> writes) throws IOException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>(writes.size());
+        List<String> values = new ArrayList<String>(writes.size());
+        // the locks of every key in the batch are taken in stripe order, so two batches can't deadlock. A full batch
+        // covers most of the stripes, so atomic operations wait for it, but only for the one write that appends the
+        // batch; splitting it up by stripe would cost a write per group instead
+        SortedSet<Integer> stripes = new TreeSet<Integer>();
+        for (PendingWrite write : writes) {
+            keys.add(write.key);
+            values.add(write.value);
+            stripes.add(keyLockStripe(write.key));
+        }
+        for (int stripe : stripes) {
+            keyLocks[stripe].lock();
+        }
+        try {
+            appendAllLocked(keys, values);
+        } finally {
+            for (int stripe : stripes) {
+                keyLocks[stripe].unlock();
+            }
+        }
+        for (PendingWrite write : writes) {
+            write.result.complete(null);
+        }
+    }
+
+    private void appendAllLocked(List<String> keys, List<String> values) throws IOException {
+        for (String key : keys) {
+            markWritten(key);
+        }
+        while (true) {
+            ActiveSegment segment = activeSegment;
+            IndexRecord[] records = segment.putAll(keys, values);
+            if (records == null) {
+                // the segment was rolled over before we could write to it, so use the new one
+                continue;
+            }
+
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] == null) {
+                    index.remove(keys.get(i));
+                } else {
+                    index.put(keys.get(i), records[i]);
+                }
+            }
+            changeFeed.notifyAppend();
+            checkSegmentSize(segment);
+            break;
+        }
+    }
+
+    // bufferWrite replaces any write of the same key that's still buffered. The replaced write completes along with
+    // the one replacing it, since that's when its value stops being the one to write
+    private CompletableFuture<Void> bufferWrite(PendingWrite write) {
+        markWritten(write.key);
+        if (write.value != null) {
+            accessSampler.recordWrite(write.key);
+        }
+        PendingWrite replaced = writeBuffer.put(write.key, write);
+        if (replaced != null) {
+            write.result.whenComplete((result, error) -> {
+                if (error != null) {
+                    replaced.result.completeExceptionally(error);
+                } else {
+                    replaced.result.complete(null);
+                }
+            });
+        }
+        if (writeBuffer.size() >= MAX_BUFFERED_KEYS && writeBufferFlushRequested.compareAndSet(false, true)) {
+            requestWriteBufferFlush();
+        }
+        return write.result;
+    }
+
+    // flushes run on the I/O threads rather than the roller, since a flush can roll the segment over, and that
+    // waits on the roller to prepare the next segment
+    private void requestWriteBufferFlush() {
+        try {
+            ioExecutor.execute(this::flushWriteBufferQuietly);
+        } catch (RejectedExecutionException e) {
+            // the store is closing, which flushes the buffer
+            writeBufferFlushRequested.set(false);
+        }
+    }
+
+    // flushWriteBuffer writes out the latest buffered write of every key. A write stays buffered, and readable from
+    // the buffer, until it's in the index. If a key is written again during the flush, the newer write stays buffered
+    public void flushWriteBuffer() throws IOException {
+        synchronized (writeBufferLock) {
+            writeBufferFlushRequested.set(false);
+            if (writeBuffer.isEmpty()) {
+                return;
+            }
+            List<PendingWrite> writes = new ArrayList<PendingWrite>(writeBuffer.values());
+            writeAll(writes);
+            for (PendingWrite write : writes) {
+                writeBuffer.remove(write.key, write);
+            }
+        }
+    }
+
+    private void flushWriteBufferQuietly() {
+        try {
+            flushWriteBuffer();
+        } catch (IOException e) {
+            // the writes stay buffered and are retried on the next flush
+            System.err.println("could not flush write buffer");
+            e.printStackTrace();
+        }
+    }
+
+    public ChangeFeed changes() {
+        return changeFeed;
+    }
+
+    public AccessSampler accessSampler() {
+        return accessSampler;
+    }
+
+    ActiveSegment getActiveSegment() {
+        return activeSegment;
+    }
+
+    private void checkSegmentSize(ActiveSegment segment) throws IOException {
+        int size = segment.getSize();
+        if (size > maximumFileSize) {
+            rollover(segment);
+        } else if (size >= maximumFileSize * PREPARE_NEXT_SEGMENT_FRACTION) {
+            prepareNextSegment();
+        }
+    }
+
+    // prepareNextSegment creates and opens the next segment on the roller thread, so that a rollover
+    // only has to swap it in
+    private void prepareNextSegment() {
+        NextSegment next = new NextSegment(Long.toString(nextSegmentId()));
+        if (!nextSegment.compareAndSet(null, next)) {
+            return;
+        }
+        try {
+            segmentRoller.execute(() -> {
+                try {
+                    File segmentFile = allocateSegmentFile(next.fileName);
+                    segmentFile.createNewFile();
+                    next.segment.complete(new ActiveSegment(segmentFile));
+                } catch (Throwable e) {
+                    next.segment.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the store is closing
+            next.segment.completeExceptionally(e);
+        }
+    }
+
+    // rollover replaces full with the next segment, if full is still the active segment. Writers that
+    // picked up full before the swap find it closed and retry against the new segment
+    private synchronized void rollover(ActiveSegment full) throws IOException {
+        if (activeSegment != full) {
+            return;
+        }
+        SegmentRolloverEvent event = new SegmentRolloverEvent();
+        event.begin();
+
+        ActiveSegment segment = null;
+        NextSegment next = nextSegment.get();
+        if (next != null) {
+            try {
+                segment = next.segment.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for next segment");
+            } catch (ExecutionException e) {
+                System.err.println("could not prepare next segment " + next.fileName + ", creating one now");
+                e.getCause().printStackTrace();
+            }
+        }
+        boolean prepared = segment != null;
+        if (segment == null) {
+            segment = new ActiveSegment(newSegmentFile());
+        }
+
+        this.activeSegment = segment;
+        nextSegment.compareAndSet(next, null);
+        full.close();
+        Segment sealed = segments.get(full.getFileName());
+        if (sealed != null) {
+            sealed.seal();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.fullSegment = full.getFileName();
+            event.fullSegmentBytes = full.getSize();
+            event.newSegment = segment.getFileName();
+            event.prepared = prepared;
+            event.commit();
+        }
+    }
+
+    private void checkSegmentAge() {
+        ActiveSegment segment = activeSegment;
+        if (segment.getSize() == 0 || System.currentTimeMillis() - segment.getCreatedAt() < maximumSegmentAge) {
+            return;
+        }
+        try {
+            rollover(segment);
+        } catch (IOException e) {
+            System.err.println("could not roll over segment " + segment.getFileName());
+            e.printStackTrace();
+        }
     }
 
     private File[] getSegmentFiles(boolean includeActive) throws IOException {
-        File[] segmentFiles = dataDir.listFiles(new FilenameFilter() {
+        File[] segmentFiles = listSegmentFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
                 if (includeActive) {
                     return !name.endsWith("hint");
                 }
-                return !name.equals(activeSegment.getFileName()) && !name.endsWith("hint");
+                return !isActiveSegment(name) && !name.endsWith("hint");
             }
         });
         HashIndexStore.sortSegments(segmentFiles);
         return segmentFiles;
     }
 
-    // doCompaction compacts two segments at a time until they've all been compacted
+    private boolean isActiveSegment(String fileName) {
+        if (fileName.equals(activeSegment.getFileName())) {
+            return true;
+        }
+        NextSegment next = nextSegment.get();
+        return next != null && fileName.equals(next.fileName);
+    }
+
+    // doCompaction splits the sealed segments into contiguous groups of up to compactionGroupSize bytes and compacts
+    // each group into a single segment, running up to compactionParallelism groups at once. A segment that's a group
+    // on its own is left alone, so large compacted segments aren't rewritten every run
     public void doCompaction() throws Exception {
-        File[] segmentFiles = getSegmentFiles(false);
+        // the loader may still be about to install records from the segments compaction would retire
+        if (loadedKeys != null) {
+            return;
+        }
 
-        if (segmentFiles.length > 1) {
-            File leftMergeFile = null;
-            for (File segmentFile : segmentFiles) {
-                if (leftMergeFile == null) {
-                    leftMergeFile = segmentFile;
-                    continue;
+        synchronized (compactionLock) {
+            List<List<File>> groups = compactionGroups(getSegmentFiles(false));
+            List<Callable<File>> tasks = new ArrayList<Callable<File>>();
+            for (int i = 0; i < groups.size(); i++) {
+                List<File> group = groups.get(i);
+                // only the group holding the oldest segment can drop deletes, later groups may be shadowing
+                // a key that's still in an older group
+                boolean oldest = i == 0;
+                if (group.size() > 1) {
+                    tasks.add(() -> compactGroup(group, oldest));
                 }
+            }
+            if (!tasks.isEmpty()) {
+                compactGroups(tasks);
+            }
+            collectBlobs();
+        }
+    }
 
-                leftMergeFile = compactSegments(leftMergeFile, segmentFile);
+    private void compactGroups(List<Callable<File>> tasks) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(compactionParallelism, tasks.size()), runnable -> {
+            Thread thread = new Thread(runnable, "compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Exception failure = null;
+            for (Future<File> result : pool.invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
             }
+        } finally {
+            pool.shutdown();
         }
+    }
 
+    // collectBlobs removes the blobs that no key refers to any more. Segments may still hold references to them
+    // in records that have been overwritten or deleted, but those are never loaded into the index again. A read
+    // that has a blob open when it's deleted still finishes, and one that opens it afterwards retries
+    private void collectBlobs() throws IOException {
+        if (!indexLoaded) {
+            return;
+        }
+        blobLock.writeLock().lock();
+        try {
+            Set<String> referenced = new HashSet<String>();
+            for (IndexRecord record : index.values()) {
+                if (ValueReference.isBlob(record.fileName)) {
+                    referenced.add(record.fileName);
+                }
+            }
+
+            for (File blobFile : listBlobFiles()) {
+                String blobName = ValueReference.BLOB_DIRECTORY + "/" + blobFile.getName();
+                if (referenced.contains(blobName)) {
+                    continue;
+                }
+                blobFile.delete();
+                readQueues.remove(blobName);
+                accessSampler.removeSegment(blobName);
+                // temporary files are left behind by writes that didn't finish
+                if (!blobName.endsWith(".tmp")) {
+                    blobs.remove(ValueReference.blobHash(blobName), blobName);
+                }
+            }
+        } finally {
+            blobLock.writeLock().unlock();
+        }
+    }
+
+    private List<List<File>> compactionGroups(File[] segmentFiles) {
+        List<List<File>> groups = new ArrayList<List<File>>();
+        List<File> group = new ArrayList<File>();
+        long groupSize = 0;
+        for (File segmentFile : segmentFiles) {
+            long size = segmentFile.length();
+            if (!group.isEmpty() && groupSize + size > compactionGroupSize) {
+                groups.add(group);
+                group = new ArrayList<File>();
+                groupSize = 0;
+            }
+            group.add(segmentFile);
+            groupSize += size;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
     }
 
     // TODO: this function needs to be defensive against files that are named wrongly
@@ -185,82 +1299,362 @@ public class HashIndexStore implements Store, AutoCloseable {
         if (newFileNameParts.length == 2) {
             compactedFileVersion = compactedFileVersion + Integer.parseInt(newFileNameParts[1]);
         }
-        return getSegmentFile(Long.toString(newFileTimestamp) + "-" + Integer.toString(compactedFileVersion));
+        return allocateSegmentFile(Long.toString(newFileTimestamp) + "-" + Integer.toString(compactedFileVersion));
     }
 
+    // compactSegments merges two segments, the first of which must be the oldest segment in the store
     public File compactSegments(File oldSegment, File newSegment) throws IOException {
-        Map<String, IndexRecord> index = new HashMap<String, IndexRecord>();
+        return compactGroup(Arrays.asList(oldSegment, newSegment), true);
+    }
+
+    // compactGroup merges a contiguous run of segments, given oldest first, into a single segment named after
+    // the newest of them. Deletes are dropped if dropDeletes is set, otherwise the last delete of each deleted key
+    // is kept so that it still hides the key in older segments. References to deduplicated values are copied as
+    // they are, so shared values are never rewritten. Hint files can't record deletes or references, so a segment
+    // that keeps any is loaded from its data file instead
+    private File compactGroup(List<File> group, boolean dropDeletes) throws IOException {
+        CompactionEvent event = new CompactionEvent();
+        event.begin();
+        // measured up front, since the group's files are gone by the time the event is committed
+        long bytesRead = 0;
+        for (File segmentFile : group) {
+            bytesRead += segmentFile.length();
+        }
+        // where the latest record of each key in the group is, and which of those are deletes
+        Map<String, IndexRecord> latest = new HashMap<String, IndexRecord>();
+        Set<String> deletedKeys = new HashSet<String>();
         Map<String, IndexRecord> hintIndex = new HashMap<String, IndexRecord>();
-        Map<String, Segment> segments = new HashMap<String, Segment>();
 
-        Segment segment1 = getSegment(oldSegment);
-        Segment segment2 = getSegment(newSegment);
-        segments.put(segment1.dataFile.getName(), segment1);
-        segments.put(segment2.dataFile.getName(), segment2);
-        segment1.load(index);
-        segment2.load(index);
+        List<Segment> groupSegments = new ArrayList<Segment>();
+        for (File segmentFile : group) {
+            Segment segment = getSegment(segmentFile);
+            groupSegments.add(segment);
+            segment.scan(new SegmentScanner.Visitor() {
+                public void visit(SegmentScanner.Record record) throws IOException {
+                    latest.put(record.key(), record.location());
+                    if (record.isTombstone()) {
+                        deletedKeys.add(record.key());
+                    } else {
+                        deletedKeys.remove(record.key());
+                    }
+                }
+            });
+        }
 
-        File compactedFile = compactedSegmentFile(oldSegment, newSegment);
+        File compactedFile = compactedSegmentFile(group.get(0), group.get(group.size() - 1));
         compactedFile.createNewFile();
 
-        ActiveSegment outputSegment = new ActiveSegment(compactedFile);
-        for (Map.Entry entry : index.entrySet()) {
-            IndexRecord record = (IndexRecord) entry.getValue();
-            Segment recordSegment = segments.get(record.fileName);
-            String value = recordSegment.get(record);
-
-            String key = (String) entry.getKey();
-            IndexRecord newSegmentRecord = outputSegment.put(key, value);
-            hintIndex.put(key, newSegmentRecord);
+        // scan the segments again in order, copying over the records that are still live as they are
+        ActiveSegment outputSegment = new ActiveSegment(compactedFile, compactionBufferSize);
+        boolean[] unhinted = new boolean[1];
+        try {
+            SegmentScanner.Visitor copyLiveRecords = new SegmentScanner.Visitor() {
+                public void visit(SegmentScanner.Record record) throws IOException {
+                    String key = record.key();
+                    if (!record.location().equals(latest.get(key))) {
+                        return;
+                    }
+                    if (record.isReference()) {
+                        // the index points at the value itself, which isn't moving
+                        outputSegment.append(record);
+                        unhinted[0] = true;
+                    } else if (!record.isTombstone()) {
+                        hintIndex.put(key, outputSegment.append(record));
+                    } else if (!dropDeletes) {
+                        outputSegment.append(record);
+                        unhinted[0] = true;
+                    }
+                }
+            };
+            for (Segment segment : groupSegments) {
+                segment.scan(copyLiveRecords);
+            }
+        } finally {
+            outputSegment.close();
         }
 
-        // update the segment file names offset map - this seems expensive, not sure if there's a better way to do this
-        for (Map.Entry entry : hintIndex.entrySet()) {
-            IndexRecord record = this.index.get(entry.getKey());
-            if (record != null) {
-                IndexRecord newRecord = (IndexRecord) entry.getValue();
-                record.mergeWith(newRecord);
-            }
+        if (!unhinted[0]) {
+            HintFile hintFile = new HintFile(new File(compactedFile.getAbsolutePath() + ".hint"), hintIndex);
+            hintFile.save();
         }
 
-        oldSegment.delete();
-        newSegment.delete();
+        // install the new locations. A key is only moved if the index still points at the record we compacted -
+        // if it was overwritten or deleted while we were compacting, the newer write wins
+        for (Map.Entry<String, IndexRecord> entry : hintIndex.entrySet()) {
+            this.index.replace(entry.getKey(), latest.get(entry.getKey()), entry.getValue());
+        }
 
-        HintFile hintFile = new HintFile(new File(compactedFile.getAbsolutePath() + ".hint"), hintIndex);
-        hintFile.save();
-        // delete old hint files if they exist
-        File oldHintFile = new File(oldSegment.getAbsolutePath() + ".hint");
-        oldHintFile.delete();
+        // the old segments are deleted once any reads still using them have finished
+        for (Segment segment : groupSegments) {
+            retireSegment(segment);
+        }
 
+        event.end();
+        if (event.shouldCommit()) {
+            event.firstSegment = group.get(0).getName();
+            event.lastSegment = group.get(group.size() - 1).getName();
+            event.segments = group.size();
+            event.compactedSegment = compactedFile.getName();
+            event.bytesRead = bytesRead;
+            event.bytesWritten = compactedFile.length();
+            event.liveKeys = hintIndex.size();
+            event.commit();
+        }
         return compactedFile;
     }
 
-    private synchronized void setNewActiveSegment() throws IOException {
-        File segmentFile = newSegmentFile();
-        ActiveSegment segment = new ActiveSegment(segmentFile);
-        this.activeSegment.close();
-        this.activeSegment = segment;
-    }
-
     public void close() throws IOException {
+        if (writeBufferFlush != null) {
+            writeBufferFlush.cancel(false);
+        }
+        flushWriteBuffer();
+        // let queued asynchronous operations finish before their segments are closed
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         activeSegment.close();
+        // wait for a next segment that's still being prepared before stopping the roller
+        closeNextSegment();
+        segmentRoller.shutdownNow();
         if (switchSegmentTask != null) {
             switchSegmentTask.cancel();
+            compactionTimer.cancel();
         }
         for (Segment segment : segments.values()) {
             segment.close();
         }
+        segments.clear();
+        changeFeed.close();
+        if (index instanceof Closeable) {
+            ((Closeable) index).close();
+        }
+    }
+
+    // an unused next segment is closed and its empty file removed
+    private void closeNextSegment() throws IOException {
+        NextSegment next = nextSegment.getAndSet(null);
+        if (next == null) {
+            return;
+        }
+        try {
+            ActiveSegment segment = next.segment.get();
+            segment.close();
+            if (segment.getSize() == 0) {
+                segment.dataFile.delete();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            getSegmentFile(next.fileName).delete();
+        }
     }
 
     public void setCompactionPeriod(long segmentSwitchPeriod) {
         this.compactionPeriod = segmentSwitchPeriod;
     }
 
+    // setCompactionGroupSize sets how many bytes of segments are merged into each compacted segment
+    public void setCompactionGroupSize(long compactionGroupSize) {
+        this.compactionGroupSize = compactionGroupSize;
+    }
+
+    public void setCompactionParallelism(int compactionParallelism) {
+        this.compactionParallelism = Math.max(1, compactionParallelism);
+    }
+
+    // setDedupThreshold stores values of at least this many characters once however many keys they're written
+    // under. 0 turns deduplication off
+    public void setDedupThreshold(int dedupThreshold) {
+        this.dedupThreshold = dedupThreshold;
+    }
+
+    // setWriteBufferInterval buffers puts and deletes in memory and writes them out every interval milliseconds,
+    // so a key that's overwritten many times in between is only written once. put and delete return once the write
+    // is buffered, so a crash can lose up to an interval's worth of writes, while the futures from putAsync and
+    // deleteAsync complete once the write has been flushed. An interval of 0 turns buffering off, flushing the
+    // buffer before any write goes straight to the segment
+    public void setWriteBufferInterval(long writeBufferInterval) throws IOException {
+        // flushes take writeBufferLock before the key locks, so take them in the same order
+        synchronized (writeBufferLock) {
+            for (Lock lock : keyLocks) {
+                lock.lock();
+            }
+            try {
+                if (writeBufferFlush != null) {
+                    writeBufferFlush.cancel(false);
+                    writeBufferFlush = null;
+                }
+                if (writeBufferInterval > 0) {
+                    writeBufferFlush = segmentRoller.scheduleWithFixedDelay(this::requestWriteBufferFlush,
+                            writeBufferInterval, writeBufferInterval, TimeUnit.MILLISECONDS);
+                } else {
+                    flushWriteBuffer();
+                }
+                this.writeBufferInterval = writeBufferInterval;
+            } finally {
+                for (Lock lock : keyLocks) {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    public void setSegmentPlacement(SegmentPlacement segmentPlacement) {
+        this.segmentPlacement = segmentPlacement;
+    }
+
+    // setLoadWaitTimeout sets how long a read of a key that isn't in the index yet waits for a background load to
+    // find it before failing
+    public void setLoadWaitTimeout(long loadWaitTimeout) {
+        this.loadWaitTimeout = loadWaitTimeout;
+    }
+
     public void setMaximumFileSize(int maximumFileSize){
         this.maximumFileSize = maximumFileSize;
     }
 
+    // setMaximumSegmentAge rolls the active segment over once it's been open this long, even if it isn't full.
+    // An age of 0 turns this off
+    public void setMaximumSegmentAge(long maximumSegmentAge) {
+        this.maximumSegmentAge = maximumSegmentAge;
+        if (segmentAgeCheck != null) {
+            segmentAgeCheck.cancel(false);
+            segmentAgeCheck = null;
+        }
+        if (maximumSegmentAge > 0) {
+            long checkPeriod = Math.max(1, maximumSegmentAge / 10);
+            segmentAgeCheck = segmentRoller.scheduleWithFixedDelay(this::checkSegmentAge, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // setIndex replaces the in-memory index, for example with a SpillableIndex when the keys won't fit in memory.
+    // It should be called before loadIndex, and the store closes the index if it's Closeable
     public void setIndex(Map<String, IndexRecord> index) {
         this.index = index;
     }
+
+    private interface ValueReader<T> {
+        T read(Segment segment, IndexRecord record) throws IOException;
+    }
+
+    private static class PendingWrite {
+        final String key;
+        // null for deletes
+        final String value;
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+        PendingWrite(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class PendingRead {
+        final String key;
+        // null while the read waits for the index to load
+        final IndexRecord record;
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+
+        PendingRead(String key, IndexRecord record) {
+            this.key = key;
+            this.record = record;
+        }
+    }
+
+    // ReadQueue holds the reads waiting on one segment. Whichever read finds the queue idle schedules a task that
+    // repeatedly takes everything queued by then and reads it in offset order, until the queue is empty
+    private class ReadQueue {
+        private final String segmentName;
+        private Queue<PendingRead> reads = new ConcurrentLinkedQueue<PendingRead>();
+        private AtomicBoolean scheduled = new AtomicBoolean();
+
+        ReadQueue(String segmentName) {
+            this.segmentName = segmentName;
+        }
+
+        void add(PendingRead read) {
+            reads.add(read);
+            schedule();
+        }
+
+        private void schedule() {
+            if (reads.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                ioExecutor.execute(this::readBatches);
+            } catch (RejectedExecutionException e) {
+                PendingRead read;
+                while ((read = reads.poll()) != null) {
+                    read.result.completeExceptionally(new IOException("store is closed"));
+                }
+                scheduled.set(false);
+            }
+        }
+
+        private void readBatches() {
+            try {
+                while (!reads.isEmpty()) {
+                    readBatch();
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+
+        private void readBatch() {
+            List<PendingRead> batch = new ArrayList<PendingRead>();
+            PendingRead read;
+            while ((read = reads.poll()) != null) {
+                batch.add(read);
+            }
+            batch.sort(Comparator.comparingInt(pending -> pending.record.valueOffset));
+
+            try {
+                Segment segment = batch.isEmpty() ? null : acquireSegment(batch.get(0).record);
+                if (segment == null) {
+                    // compaction retired the segment since these were queued, so look them up again. A read of a
+                    // stale index record may have recreated the queue after retireSegment removed it, so drop it
+                    readQueues.remove(segmentName, this);
+                    for (PendingRead pending : batch) {
+                        complete(pending, () -> get(pending.key));
+                    }
+                } else {
+                    try {
+                        for (PendingRead pending : batch) {
+                            accessSampler.recordRead(pending.key, segmentName);
+                            complete(pending, () -> segment.get(pending.record));
+                        }
+                    } finally {
+                        releaseSegment(segment);
+                    }
+                }
+            } catch (Throwable e) {
+                for (PendingRead pending : batch) {
+                    pending.result.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void complete(PendingRead read, Callable<String> value) {
+            try {
+                read.result.complete(value.call());
+            } catch (Throwable e) {
+                read.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class NextSegment {
+        final String fileName;
+        final CompletableFuture<ActiveSegment> segment = new CompletableFuture<ActiveSegment>();
+
+        NextSegment(String fileName) {
+            this.fileName = fileName;
+        }
+    }
 }
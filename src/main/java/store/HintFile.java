@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.CRC32;
+import store.events.HintFileEvent;
 
 public class HintFile {
 
@@ -35,6 +36,26 @@ public class HintFile {
     }
 
     public boolean loadIndex() throws IOException {
+        HintFileEvent event = new HintFileEvent();
+        event.begin();
+        boolean loaded = false;
+        try {
+            loaded = readIndex();
+            return loaded;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = file.getName();
+                event.operation = "load";
+                event.entries = loaded ? index.size() : 0;
+                event.bytes = file.length();
+                event.succeeded = loaded;
+                event.commit();
+            }
+        }
+    }
+
+    private boolean readIndex() throws IOException {
         CRC32 crc = new CRC32();
         long crcValue;
         Map<String, IndexRecord> index = new HashMap<String, IndexRecord>();
@@ -83,6 +104,26 @@ public class HintFile {
     }
 
     public void save() throws IOException {
+        HintFileEvent event = new HintFileEvent();
+        event.begin();
+        boolean saved = false;
+        try {
+            write();
+            saved = true;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = file.getName();
+                event.operation = "save";
+                event.entries = index.size();
+                event.bytes = file.length();
+                event.succeeded = saved;
+                event.commit();
+            }
+        }
+    }
+
+    private void write() throws IOException {
         file.createNewFile();
         CRC32 crc = new CRC32();
         try (FileOutputStream outputStream = new FileOutputStream(file, false)) {
@@ -1,9 +1,14 @@
 package store;
 
-public class IndexRecord {
-    String fileName;
-    int valueLength;
-    int valueOffset;
+import java.util.Objects;
+
+// IndexRecord is immutable so that a record's location can be swapped into the index in a single step.
+// Compaction installs new locations with a compare-and-set against the record it compacted, so a reader
+// always sees either the old location or the new one, never a mix of the two
+public final class IndexRecord {
+    final String fileName;
+    final int valueLength;
+    final int valueOffset;
 
     IndexRecord(String fileName, int valueLength, int valueOffset) {
         this.fileName = fileName;
@@ -11,8 +16,22 @@ public class IndexRecord {
         this.valueOffset = valueOffset;
     }
 
-    public synchronized void mergeWith(IndexRecord otherRecord) {
-        this.fileName = otherRecord.fileName;
-        this.valueOffset = otherRecord.valueOffset;
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IndexRecord)) {
+            return false;
+        }
+        IndexRecord other = (IndexRecord) o;
+        return valueLength == other.valueLength &&
+                valueOffset == other.valueOffset &&
+                fileName.equals(other.fileName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileName, valueLength, valueOffset);
     }
 }
@@ -0,0 +1,25 @@
+package store;
+
+// LoadStatus reports how far a store has got rebuilding its index from disk
+public class LoadStatus {
+    public enum State {
+        LOADING,
+        READY,
+        // loading stopped on an error, so keys in the segments that weren't loaded can't be found
+        FAILED
+    }
+
+    public final State state;
+    public final int segmentsLoaded;
+    public final int segmentsTotal;
+
+    public LoadStatus(State state, int segmentsLoaded, int segmentsTotal) {
+        this.state = state;
+        this.segmentsLoaded = segmentsLoaded;
+        this.segmentsTotal = segmentsTotal;
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+}
@@ -0,0 +1,72 @@
+package store;
+
+import java.io.*;
+import java.util.Properties;
+
+// NamespaceConfig holds the settings a namespace's store is opened with. It's saved alongside the namespace so
+// the namespace is reopened the same way after a restart
+public class NamespaceConfig {
+    // the size at which the active segment is rolled over
+    public int maximumFileSize = HashIndexStore.DEFAULT_MAXIMUM_FILE_SIZE;
+    // how long the active segment can stay open before it's rolled over. 0 means no limit
+    public long maximumSegmentAge = 0;
+    // how often the namespace is compacted
+    public long compactionPeriod = HashIndexStore.DEFAULT_COMPACTION_PERIOD;
+    // see HashIndexStore.setWriteBufferInterval. 0 turns write buffering off
+    public long writeBufferInterval = 0;
+
+    // validate throws IllegalArgumentException if a setting is out of range: the size limit and compaction period
+    // must be positive, and the segment age and write buffer interval can't be negative
+    void validate() {
+        if (maximumFileSize <= 0) {
+            throw new IllegalArgumentException("maximumFileSize must be positive");
+        }
+        if (maximumSegmentAge < 0) {
+            throw new IllegalArgumentException("maximumSegmentAge can't be negative");
+        }
+        if (compactionPeriod <= 0) {
+            throw new IllegalArgumentException("compactionPeriod must be positive");
+        }
+        if (writeBufferInterval < 0) {
+            throw new IllegalArgumentException("writeBufferInterval can't be negative");
+        }
+    }
+
+    void apply(HashIndexStore store) throws IOException {
+        store.setMaximumFileSize(maximumFileSize);
+        store.setMaximumSegmentAge(maximumSegmentAge);
+        store.setCompactionPeriod(compactionPeriod);
+        store.setWriteBufferInterval(writeBufferInterval);
+    }
+
+    static NamespaceConfig load(File file) throws IOException {
+        NamespaceConfig config = new NamespaceConfig();
+        if (!file.exists()) {
+            return config;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        config.maximumFileSize = Integer.parseInt(properties.getProperty("maximumFileSize",
+                Integer.toString(config.maximumFileSize)));
+        config.maximumSegmentAge = Long.parseLong(properties.getProperty("maximumSegmentAge",
+                Long.toString(config.maximumSegmentAge)));
+        config.compactionPeriod = Long.parseLong(properties.getProperty("compactionPeriod",
+                Long.toString(config.compactionPeriod)));
+        config.writeBufferInterval = Long.parseLong(properties.getProperty("writeBufferInterval",
+                Long.toString(config.writeBufferInterval)));
+        return config;
+    }
+
+    void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("maximumFileSize", Integer.toString(maximumFileSize));
+        properties.setProperty("maximumSegmentAge", Long.toString(maximumSegmentAge));
+        properties.setProperty("compactionPeriod", Long.toString(compactionPeriod));
+        properties.setProperty("writeBufferInterval", Long.toString(writeBufferInterval));
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Namespaces keeps a separate store for each named namespace, so data with different access patterns - short-lived
+// sessions and a long-lived catalog, say - gets its own segments, index, segment size and compaction schedule.
+// Each namespace lives in its own directory under root, with its NamespaceConfig saved next to it
+public class Namespaces implements AutoCloseable {
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final String CONFIG_SUFFIX = ".properties";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private File root;
+    private boolean lazyLoad;
+    private boolean spillIndex;
+    // namespaces are looked up on every request, so only creating and closing them is synchronized
+    private Map<String, HashIndexStore> stores = new ConcurrentHashMap<String, HashIndexStore>();
+
+    // opens every namespace already under root and loads its index
+    public Namespaces(File root) throws Exception {
+        this(root, false, false);
+    }
+
+    // lazyLoad and spillIndex apply HashIndexStore.loadIndexInBackground and a SpillableIndex, kept next to the
+    // namespace's directory, to every namespace. A background load keeps every key it has seen in memory, so the
+    // two can't be combined
+    public Namespaces(File root, boolean lazyLoad, boolean spillIndex) throws Exception {
+        if (lazyLoad && spillIndex) {
+            throw new IllegalArgumentException("a spilled index can't be loaded in the background");
+        }
+        this.root = root;
+        this.lazyLoad = lazyLoad;
+        this.spillIndex = spillIndex;
+        root.mkdirs();
+        File[] directories = root.listFiles(File::isDirectory);
+        if (directories == null) {
+            throw new IOException("could not list namespaces in " + root);
+        }
+        for (File directory : directories) {
+            if (VALID_NAME.matcher(directory.getName()).matches()) {
+                open(directory.getName(), NamespaceConfig.load(configFile(directory.getName())));
+            }
+        }
+    }
+
+    // get returns the namespace's store, or null if there's no such namespace
+    public Store get(String name) {
+        return stores.get(name);
+    }
+
+    public Set<String> names() {
+        return new TreeSet<String>(stores.keySet());
+    }
+
+    // create adds a namespace and returns its store. It throws IllegalArgumentException if the name isn't made up
+    // of letters, digits, '_' and '-' or a setting is out of range, and IllegalStateException if the namespace
+    // already exists
+    public synchronized Store create(String name, NamespaceConfig config) throws Exception {
+        if (!VALID_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("invalid namespace name " + name);
+        }
+        config.validate();
+        if (stores.containsKey(name)) {
+            throw new IllegalStateException("namespace " + name + " already exists");
+        }
+        new File(root, name).mkdirs();
+        config.save(configFile(name));
+        return open(name, config);
+    }
+
+    private HashIndexStore open(String name, NamespaceConfig config) throws Exception {
+        HashIndexStore store = new HashIndexStore(new File(root, name));
+        try {
+            config.apply(store);
+            if (spillIndex) {
+                store.setIndex(new SpillableIndex(new File(root, name + INDEX_SUFFIX), 1 << 16, 4096));
+            }
+            if (lazyLoad) {
+                store.loadIndexInBackground();
+            } else {
+                store.loadIndex();
+            }
+            store.scheduleCompaction();
+        } catch (Exception e) {
+            store.close();
+            throw e;
+        }
+        stores.put(name, store);
+        return store;
+    }
+
+    private File configFile(String name) {
+        return new File(root, name + CONFIG_SUFFIX);
+    }
+
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (HashIndexStore store : stores.values()) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        stores.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package store;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.CRC32;
+
+// RecordEncoder serializes a record straight into a direct buffer that is reused by the calling thread,
+// so the put path doesn't allocate intermediate streams or byte arrays. The layout matches what Segment.walk reads:
+//
+//   crc (8) | meta (1) | key length (4) | value length (4) | key | value
+//
+// where the CRC covers everything after itself, and meta is a set of the flags below
+final class RecordEncoder {
+    static final int CRC_LENGTH = 8;
+    static final int HEADER_LENGTH = 17;
+
+    static final byte TOMBSTONE = 0x01;
+    // the value is a ValueReference to a deduplicated value stored elsewhere
+    static final byte REFERENCE = 0x02;
+
+    private static final int KEY_LENGTH_POSITION = 9;
+    private static final int VALUE_LENGTH_POSITION = 13;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // the pooled buffer grows up to this size. Records that could be bigger are encoded into a heap buffer of
+    // their own instead, so one large put doesn't leave every writer thread holding a direct buffer that size.
+    // FileChannel.write still copies a heap buffer through the JDK's own cached temporary direct buffer
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    // the same goes for the buffer batches of records are gathered into, see beginBatch
+    private static final int MAX_POOLED_BATCH_SIZE = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<RecordEncoder> encoders = ThreadLocal.withInitial(RecordEncoder::new);
+
+    private ByteBuffer pooled = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    // the buffer the last record was encoded into
+    private ByteBuffer buffer = pooled;
+    private ByteBuffer pooledBatch = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private ByteBuffer batch = pooledBatch;
+    private CRC32 crc = new CRC32();
+    // String.getBytes() uses the default charset and replaces unmappable characters, so do the same here
+    private CharsetEncoder charsetEncoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    static RecordEncoder get() {
+        return encoders.get();
+    }
+
+    // encode returns the thread's buffer positioned over the encoded record. It is only valid until the
+    // next call to encode on the same thread
+    ByteBuffer encode(boolean tombstone, String key, String value) {
+        return encode(tombstone ? TOMBSTONE : 0, key, value);
+    }
+
+    ByteBuffer encode(byte meta, String key, String value) {
+        // sized for the worst case up front, so encoding never has to start over in a bigger buffer
+        long maxLength = HEADER_LENGTH
+                + (long) Math.ceil((key.length() + (long) value.length()) * charsetEncoder.maxBytesPerChar());
+        if (maxLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("record for key " + key + " is too large to encode");
+        }
+        if (maxLength <= MAX_POOLED_BUFFER_SIZE) {
+            if (pooled.capacity() < maxLength) {
+                pooled = ByteBuffer.allocateDirect(Math.min(MAX_POOLED_BUFFER_SIZE,
+                        Integer.highestOneBit((int) maxLength - 1) << 1));
+            }
+            buffer = pooled;
+        } else {
+            buffer = ByteBuffer.allocate((int) maxLength);
+        }
+
+        buffer.clear();
+        buffer.position(HEADER_LENGTH);
+        encodeString(key);
+        int keyEnd = buffer.position();
+        encodeString(value);
+        int end = buffer.position();
+
+        buffer.put(CRC_LENGTH, meta);
+        buffer.putInt(KEY_LENGTH_POSITION, keyEnd - HEADER_LENGTH);
+        buffer.putInt(VALUE_LENGTH_POSITION, end - keyEnd);
+
+        buffer.limit(end).position(CRC_LENGTH);
+        crc.reset();
+        crc.update(buffer);
+        buffer.putLong(0, crc.getValue());
+
+        buffer.position(0);
+        return buffer;
+    }
+
+    // beginBatch starts gathering records into the thread's batch buffer with appendToBatch, so they can be written
+    // in one go. The batch is only valid until the next call to beginBatch on the same thread
+    void beginBatch() {
+        batch = pooledBatch;
+        batch.clear();
+    }
+
+    // appendToBatch encodes a record onto the end of the batch and returns the record's offset within it.
+    // keyLength and valueLength then describe the appended record
+    int appendToBatch(boolean tombstone, String key, String value) {
+        ByteBuffer record = encode(tombstone, key, value);
+        if (batch.remaining() < record.remaining()) {
+            int capacity = Math.max(batch.capacity() * 2, batch.position() + record.remaining());
+            ByteBuffer bigger;
+            if (capacity <= MAX_POOLED_BATCH_SIZE) {
+                bigger = ByteBuffer.allocateDirect(capacity);
+                pooledBatch = bigger;
+            } else {
+                bigger = ByteBuffer.allocate(capacity);
+            }
+            batch.flip();
+            bigger.put(batch);
+            batch = bigger;
+        }
+        int recordOffset = batch.position();
+        batch.put(record);
+        return recordOffset;
+    }
+
+    // finishBatch returns the batch positioned over the records appended since beginBatch
+    ByteBuffer finishBatch() {
+        batch.flip();
+        return batch;
+    }
+
+    int keyLength() {
+        return buffer.getInt(KEY_LENGTH_POSITION);
+    }
+
+    int valueLength() {
+        return buffer.getInt(VALUE_LENGTH_POSITION);
+    }
+
+    // encodeString can't overflow, since the buffer is sized for every character taking maxBytesPerChar
+    private void encodeString(String s) {
+        charsetEncoder.reset();
+        charsetEncoder.encode(CharBuffer.wrap(s), buffer, true);
+        charsetEncoder.flush(buffer);
+    }
+}
@@ -0,0 +1,6 @@
+package store;
+
+// Sampled is a store that samples its reads and writes into an AccessSampler
+public interface Sampled {
+    public AccessSampler accessSampler();
+}
@@ -0,0 +1,123 @@
+package store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+// ScanSpliterator walks a snapshot of the index that has been grouped by segment and sorted by offset, so
+// that values are read from each segment front to back. It splits along segment boundaries until each
+// half covers a single segment, which lets a parallel stream read one segment per thread.
+class ScanSpliterator implements Spliterator<Map.Entry<String, String>> {
+    private HashIndexStore store;
+    private List<SegmentScan> scans;
+    private int current;
+    private int end;
+
+    ScanSpliterator(HashIndexStore store, List<SegmentScan> scans, int start, int end) {
+        this.store = store;
+        this.scans = scans;
+        this.current = start;
+        this.end = end;
+    }
+
+    public boolean tryAdvance(Consumer<? super Map.Entry<String, String>> action) {
+        try {
+            while (current < end) {
+                SegmentScan scan = scans.get(current);
+                Map.Entry<String, String> entry = scan.next(store);
+                if (entry != null) {
+                    action.accept(entry);
+                    return true;
+                }
+                scan.close(store);
+                current++;
+            }
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Spliterator<Map.Entry<String, String>> trySplit() {
+        if (end - current < 2) {
+            return null;
+        }
+        int middle = current + (end - current) / 2;
+        ScanSpliterator prefix = new ScanSpliterator(store, scans, current, middle);
+        current = middle;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        long size = 0;
+        for (int i = current; i < end; i++) {
+            size += scans.get(i).remaining();
+        }
+        return size;
+    }
+
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+
+    // SegmentScan holds the snapshot records for one segment. The segment is acquired when the scan reaches it,
+    // so that compaction can't delete it mid-read, and released when it's done, so a scan only holds the segment
+    // (or blob) it's reading. If compaction retired the segment before the scan got to it, each key is looked up
+    // through the store instead
+    static class SegmentScan {
+        private Segment segment;
+        private List<Map.Entry<String, IndexRecord>> records;
+        private int position = 0;
+        private boolean acquired = false;
+        private boolean closed = false;
+
+        SegmentScan(List<Map.Entry<String, IndexRecord>> records) {
+            this.records = records;
+        }
+
+        Map.Entry<String, String> next(HashIndexStore store) throws IOException {
+            acquire(store);
+            while (position < records.size()) {
+                Map.Entry<String, IndexRecord> record = records.get(position++);
+                String value;
+                if (segment != null) {
+                    value = segment.get(record.getValue());
+                } else {
+                    value = store.get(record.getKey());
+                    if (value == null) {
+                        // deleted since the snapshot was taken
+                        continue;
+                    }
+                }
+                return new AbstractMap.SimpleImmutableEntry<String, String>(record.getKey(), value);
+            }
+            return null;
+        }
+
+        int remaining() {
+            return records.size() - position;
+        }
+
+        private synchronized void acquire(HashIndexStore store) throws IOException {
+            if (acquired || closed) {
+                return;
+            }
+            acquired = true;
+            segment = store.acquireSegment(records.get(0).getValue());
+        }
+
+        synchronized void close(HashIndexStore store) throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (segment != null) {
+                store.releaseSegment(segment);
+            }
+        }
+    }
+}
@@ -1,108 +1,177 @@
 package store;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
-import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicInteger;
+import store.events.SegmentReadEvent;
 
 public class Segment {
+    // below this, mapping a value costs more than copying it
+    static final int MAP_THRESHOLD = 64 * 1024;
+
     File dataFile;
     RandomAccessFile reader;
+    // the name the store knows the segment by, which for blobs includes their directory
+    private String name;
+    // set once nothing more will be appended to the file. Only then is it mapped, once, for getBuffer
+    private volatile boolean sealed = false;
+    private volatile ByteBuffer mapping;
+
+    // refCount starts at 1 for the store's own reference. Readers acquire and release around each read,
+    // and retire() drops the store's reference, so the file is only removed once in-flight reads drain
+    private AtomicInteger refCount = new AtomicInteger(1);
 
     public Segment(File dataFile) throws IOException {
+        this(dataFile, dataFile.getName());
+    }
+
+    Segment(File dataFile, String name) throws IOException {
         this.reader = new RandomAccessFile(dataFile, "r");
         this.dataFile = dataFile;
+        this.name = name;
     }
 
     public void load(Map<String, IndexRecord> index) throws IOException {
-        Segment segment = this;
-        walk(new Segment.Visitor() {
-            public void visit(String key, IndexRecord record) throws IOException {
-                if (record == null) {
-                    index.remove(key);
+        scan(new SegmentScanner.Visitor() {
+            public void visit(SegmentScanner.Record record) throws IOException {
+                if (record.isTombstone()) {
+                    index.remove(record.key());
                     return;
                 }
-                index.put(key, record);
+                index.put(record.key(), record.indexRecord());
             }
         });
     }
 
+    // get uses positional reads on the file channel so that concurrent readers don't race on the file pointer
     public String get(IndexRecord record) throws IOException {
-        reader.seek(record.valueOffset);
-        byte[] value = new byte[record.valueLength];
-        reader.readFully(value);
-        return new String(value);
+        ByteBuffer value = read(record);
+        return new String(value.array(), 0, value.limit());
     }
 
-    boolean isTombstoneBitSet(byte recordMeta) {
-        return (recordMeta & 0x01) > 0;
+    // getBuffer returns the value's raw bytes. Values of at least MAP_THRESHOLD bytes in a sealed segment are
+    // returned as a read-only view of a mapping of the whole segment, made the first time it's needed, rather than
+    // copied onto the heap. The view stays valid after the segment is closed or its file deleted. A segment that's
+    // still being written is copied from instead, since the mapping would have to be remade as it grows
+    public ByteBuffer getBuffer(IndexRecord record) throws IOException {
+        if (record.valueLength >= MAP_THRESHOLD && sealed) {
+            SegmentReadEvent event = new SegmentReadEvent();
+            event.begin();
+            ByteBuffer view = mapping().duplicate();
+            view.limit(record.valueOffset + record.valueLength).position(record.valueOffset);
+            event.end();
+            if (event.shouldCommit()) {
+                event.segment = name;
+                event.offset = record.valueOffset;
+                event.bytes = record.valueLength;
+                event.mapped = true;
+                event.commit();
+            }
+            return view.slice();
+        }
+        return read(record);
     }
 
-    public void walk(Segment.Visitor visitor) throws IOException {
-        byte meta;
-        int keyLength;
-        int valueLength;
-        int offset = 0;
-
-        try (FileInputStream fis = new FileInputStream(dataFile)) {
-            DataInputStream din = new DataInputStream(fis);
-
-            while (true) {
-                long crcVal;
-                try {
-                    crcVal = din.readLong();
-                } catch (EOFException _) {
-                    return;
-                }
-
-                // TODO: we only actually need to check the CRC of the last record in the file, but not sure how to do that eloquently rn
-
-                ByteArrayOutputStream crcBuf = new ByteArrayOutputStream();
-                DataOutputStream crcBufWriter = new DataOutputStream(crcBuf);
-
-                meta = din.readByte();
-                keyLength = din.readInt();
-                valueLength = din.readInt();
+    // seal is called once the segment's file won't grow any more
+    void seal() {
+        sealed = true;
+    }
 
-                crcBufWriter.writeByte(meta);
-                crcBufWriter.writeInt(keyLength);
-                crcBufWriter.writeInt(valueLength);
+    private ByteBuffer mapping() throws IOException {
+        ByteBuffer mapped = mapping;
+        if (mapped == null) {
+            synchronized (this) {
+                mapped = mapping;
+                if (mapped == null) {
+                    FileChannel channel = reader.getChannel();
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    mapping = mapped;
+                }
+            }
+        }
+        return mapped;
+    }
 
-                byte[] keyBuf = new byte[keyLength];
-                din.readFully(keyBuf);
-                crcBufWriter.write(keyBuf);
-                // TODO: don't have this magic number here
-                // crc 8 + meta 1 + keylen 4 + vallen 4
-                int valueOffset = 17 + keyLength + offset;
+    private ByteBuffer read(IndexRecord record) throws IOException {
+        SegmentReadEvent event = new SegmentReadEvent();
+        event.begin();
+        ByteBuffer buf = ByteBuffer.allocate(record.valueLength);
+        long position = record.valueOffset;
+        while (buf.hasRemaining()) {
+            int read = reader.getChannel().read(buf, position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of segment " + getFileName());
+            }
+            position += read;
+        }
+        buf.flip();
+        event.end();
+        if (event.shouldCommit()) {
+            event.segment = name;
+            event.offset = record.valueOffset;
+            event.bytes = record.valueLength;
+            event.commit();
+        }
+        return buf;
+    }
 
-                byte[] valueBuf = new byte[valueLength];
-                din.readFully(valueBuf);
-                // TODO: I don't think I need to copy to this intermediate buffer, but not sure easier way atm
-                crcBufWriter.write(valueBuf);
+    // acquire returns false if the segment has already been retired and drained, in which case
+    // the caller should look the key up in the index again
+    public boolean acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
 
-                offset = valueOffset + valueLength;
+    // release returns true if this was the last reference to a retired segment and its files were deleted
+    public boolean release() throws IOException {
+        if (refCount.decrementAndGet() == 0) {
+            reclaim();
+            return true;
+        }
+        return false;
+    }
 
-                CRC32 crc = new CRC32();
-                crc.update(crcBuf.toByteArray());
-                if (crc.getValue() != crcVal) {
-                    // TODO: I'm not sure how this should actually be handled, here the record just gets unceremoniously dropped...
-                    System.err.println("invalid CRC val");
-                    return;
-                }
+    // retire is called once the segment's records have been installed elsewhere. The data and hint
+    // files are deleted when the last reader releases the segment
+    public boolean retire() throws IOException {
+        return release();
+    }
 
-                if (isTombstoneBitSet(meta)) {
-                    visitor.visit(new String(keyBuf), null);
-                    return;
-                }
-                visitor.visit(new String(keyBuf),
-                    new IndexRecord(dataFile.getName(), valueLength, valueOffset));
+    private void reclaim() throws IOException {
+        reader.close();
+        dataFile.delete();
+        new File(dataFile.getAbsolutePath() + ".hint").delete();
+    }
 
+    public void walk(Segment.Visitor visitor) throws IOException {
+        scan(new SegmentScanner.Visitor() {
+            public void visit(SegmentScanner.Record record) throws IOException {
+                visitor.visit(record.key(), record.isTombstone() ? null : record.indexRecord());
             }
+        });
+    }
 
+    // scan hands the visitor each record in the segment as it's parsed out of the scanner's buffer
+    void scan(SegmentScanner.Visitor visitor) throws IOException {
+        try (SegmentScanner scanner = new SegmentScanner(dataFile)) {
+            SegmentScanner.Record record;
+            while ((record = scanner.next()) != null) {
+                visitor.visit(record);
+            }
         }
     }
 
     public String getFileName() {
-        return dataFile.getName();
+        return name;
     }
 
     public void close() throws IOException {
@@ -0,0 +1,9 @@
+package store;
+
+// SegmentPlacement decides which data directory a new segment is written to when the store has several
+public enum SegmentPlacement {
+    // cycle through the data directories in order
+    ROUND_ROBIN,
+    // use the data directory with the most usable space
+    FREE_SPACE
+}
@@ -0,0 +1,200 @@
+package store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// SegmentScanner reads a segment front to back through one large reusable buffer and parses records in place.
+// Checksums are computed directly over the buffered bytes, values are never copied out, and keys are only
+// decoded when asked for. The Record handed out is reused, so it's only valid until the next call to next()
+class SegmentScanner implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private FileChannel channel;
+    private String fileName;
+    // always in read mode: the bytes between position and limit have been read from the file but not parsed
+    private ByteBuffer buffer;
+    // file offset of the byte at buffer.position()
+    private int fileOffset;
+    // file offset of the next byte to read from the channel, and where to stop reading
+    private long readOffset;
+    private long endOffset;
+    private boolean eof = false;
+    private CRC32 crc = new CRC32();
+    private Record record = new Record();
+
+    SegmentScanner(File dataFile) throws IOException {
+        this(dataFile, DEFAULT_BUFFER_SIZE);
+    }
+
+    SegmentScanner(File dataFile, int bufferSize) throws IOException {
+        this(dataFile, bufferSize, 0, Long.MAX_VALUE);
+    }
+
+    // scans the records between startOffset and endOffset, which must both fall on record boundaries. This is used
+    // to tail a segment that's still being written, where endOffset is how much of it has been written so far
+    SegmentScanner(File dataFile, int bufferSize, int startOffset, long endOffset) throws IOException {
+        this.channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        this.fileName = dataFile.getName();
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+        this.fileOffset = startOffset;
+        this.readOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    // next returns null at the end of the segment, or at the first record that is truncated or fails its checksum
+    Record next() throws IOException {
+        if (!fill(RecordEncoder.HEADER_LENGTH)) {
+            if (buffer.hasRemaining()) {
+                System.err.println("truncated record header at offset " + fileOffset + " in segment " + fileName);
+            }
+            return null;
+        }
+
+        int start = buffer.position();
+        long crcValue = buffer.getLong(start);
+        byte meta = buffer.get(start + RecordEncoder.CRC_LENGTH);
+        int keyLength = buffer.getInt(start + RecordEncoder.CRC_LENGTH + 1);
+        int valueLength = buffer.getInt(start + RecordEncoder.CRC_LENGTH + 5);
+
+        long recordLength = (long) RecordEncoder.HEADER_LENGTH + keyLength + valueLength;
+        if (keyLength < 0 || valueLength < 0 || recordLength > Integer.MAX_VALUE) {
+            System.err.println("invalid record lengths at offset " + fileOffset + " in segment " + fileName);
+            return null;
+        }
+        if (!fill((int) recordLength)) {
+            System.err.println("truncated record at offset " + fileOffset + " in segment " + fileName);
+            return null;
+        }
+        // filling may have moved the unread bytes to the front of the buffer
+        start = buffer.position();
+
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + RecordEncoder.CRC_LENGTH,
+                (int) recordLength - RecordEncoder.CRC_LENGTH);
+        if (crc.getValue() != crcValue) {
+            // TODO: I'm not sure how this should actually be handled, here the record just gets unceremoniously dropped...
+            System.err.println("invalid CRC val");
+            return null;
+        }
+
+        record.set(start, fileOffset, meta, keyLength, valueLength);
+        buffer.position(start + (int) recordLength);
+        fileOffset += (int) recordLength;
+        return record;
+    }
+
+    // fill reads from the file until at least length unparsed bytes are buffered, growing the buffer for
+    // records that are bigger than it. It returns false if the file ends first
+    private boolean fill(int length) throws IOException {
+        while (buffer.remaining() < length) {
+            if (eof) {
+                return false;
+            }
+            if (buffer.capacity() < length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+                bigger.put(buffer);
+                bigger.flip();
+                buffer = bigger;
+            }
+            buffer.compact();
+            if (endOffset - readOffset < buffer.remaining()) {
+                buffer.limit(buffer.position() + (int) (endOffset - readOffset));
+            }
+            int read = buffer.hasRemaining() ? channel.read(buffer, readOffset) : -1;
+            buffer.limit(buffer.capacity());
+            buffer.flip();
+            if (read < 0) {
+                eof = true;
+            } else {
+                readOffset += read;
+            }
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    class Record {
+        private int start;
+        private int fileOffset;
+        private byte meta;
+        private int keyLength;
+        private int valueLength;
+        private String key;
+
+        private void set(int start, int fileOffset, byte meta, int keyLength, int valueLength) {
+            this.start = start;
+            this.fileOffset = fileOffset;
+            this.meta = meta;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.key = null;
+        }
+
+        boolean isTombstone() {
+            return (meta & RecordEncoder.TOMBSTONE) > 0;
+        }
+
+        boolean isReference() {
+            return (meta & RecordEncoder.REFERENCE) > 0;
+        }
+
+        String key() {
+            if (key == null) {
+                key = new String(buffer.array(), buffer.arrayOffset() + start + RecordEncoder.HEADER_LENGTH, keyLength);
+            }
+            return key;
+        }
+
+        String value() {
+            return new String(buffer.array(), buffer.arrayOffset() + start + RecordEncoder.HEADER_LENGTH + keyLength,
+                    valueLength);
+        }
+
+        int keyLength() {
+            return keyLength;
+        }
+
+        int valueLength() {
+            return valueLength;
+        }
+
+        // nextOffset is the file offset just past this record
+        int nextOffset() {
+            return fileOffset + RecordEncoder.HEADER_LENGTH + keyLength + valueLength;
+        }
+
+        // indexRecord returns where the record's value can be read from, following references to deduplicated values
+        IndexRecord indexRecord() {
+            if (isReference()) {
+                return ValueReference.decode(value());
+            }
+            return location();
+        }
+
+        // location returns where the record's value field is in this segment
+        IndexRecord location() {
+            return new IndexRecord(fileName, valueLength, fileOffset + RecordEncoder.HEADER_LENGTH + keyLength);
+        }
+
+        // raw returns the record's bytes as written, checksum included
+        ByteBuffer raw() {
+            ByteBuffer raw = buffer.duplicate();
+            raw.limit(start + RecordEncoder.HEADER_LENGTH + keyLength + valueLength);
+            raw.position(start);
+            return raw;
+        }
+    }
+
+    interface Visitor {
+        void visit(Record record) throws IOException;
+    }
+}
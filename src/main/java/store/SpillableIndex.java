@@ -0,0 +1,357 @@
+package store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+// SpillableIndex is an index for keyspaces that don't fit in memory. Keys are hashed into a fixed number of buckets,
+// and each bucket's records are kept as a page in an index file. Only the directory of where each page lives is
+// always in memory, and recently used pages are cached, so a lookup costs at most one page read.
+//
+// The index file is scratch space: it's truncated when the index is opened and deleted on close, and the index is
+// rebuilt by loadIndex from the hint files and segments like any other. Buckets are split into stripes that each
+// have their own lock and their own share of the page cache, so a page is only ever evicted by the stripe that owns it.
+//
+// A page is rewritten in place when it fits in the space it was last given, and moved to the end of the file with
+// twice the room when it doesn't, so the file stays within a small multiple of the size of the pages in it
+public class SpillableIndex extends AbstractMap<String, IndexRecord> implements ConcurrentMap<String, IndexRecord>, Closeable {
+    private static final int STRIPES = 64;
+    private static final int MIN_SLOT_SIZE = 256;
+
+    private File file;
+    private FileChannel channel;
+    private int bucketCount;
+    // where each bucket's page is in the file, or -1 if the bucket has never been written out
+    private long[] slotOffsets;
+    private int[] slotSizes;
+    private AtomicLong fileEnd = new AtomicLong();
+    private Stripe[] stripes = new Stripe[STRIPES];
+    private LongAdder size = new LongAdder();
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private LongAdder pageWrites = new LongAdder();
+
+    // bucketCount should be chosen so a page holds a few hundred keys at the expected keyspace size.
+    // cachedPages is how many pages are kept in memory at most
+    public SpillableIndex(File file, int bucketCount, int cachedPages) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.bucketCount = bucketCount;
+        this.slotOffsets = new long[bucketCount];
+        this.slotSizes = new int[bucketCount];
+        Arrays.fill(slotOffsets, -1);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, cachedPages / STRIPES));
+        }
+    }
+
+    private int bucket(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % bucketCount;
+    }
+
+    private Stripe stripe(int bucket) {
+        return stripes[bucket % STRIPES];
+    }
+
+    // bucketOrder sorts keys so that applying a batch of updates in that order reads and writes each page once
+    public Comparator<String> bucketOrder() {
+        return Comparator.comparingInt(this::bucket);
+    }
+
+    public IndexRecord get(Object key) {
+        int bucket = bucket(key);
+        Stripe stripe = stripe(bucket);
+        synchronized (stripe) {
+            return stripe.page(bucket).records.get(key);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public IndexRecord put(String key, IndexRecord record) {
+        return compute(key, (k, current) -> record, true);
+    }
+
+    public IndexRecord remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        return compute((String) key, (k, current) -> null, true);
+    }
+
+    public IndexRecord putIfAbsent(String key, IndexRecord record) {
+        return compute(key, (k, current) -> current == null ? record : current, true);
+    }
+
+    public boolean remove(Object key, Object record) {
+        if (!(key instanceof String) || record == null) {
+            return false;
+        }
+        IndexRecord previous = compute((String) key, (k, current) -> record.equals(current) ? null : current, true);
+        return record.equals(previous);
+    }
+
+    public boolean replace(String key, IndexRecord oldRecord, IndexRecord newRecord) {
+        IndexRecord previous = compute(key, (k, current) -> oldRecord.equals(current) ? newRecord : current, true);
+        return oldRecord.equals(previous);
+    }
+
+    public IndexRecord replace(String key, IndexRecord record) {
+        return compute(key, (k, current) -> current == null ? null : record, true);
+    }
+
+    public IndexRecord compute(String key, BiFunction<? super String, ? super IndexRecord, ? extends IndexRecord> function) {
+        return compute(key, function, false);
+    }
+
+    // compute applies function to the key's record under its stripe's lock, returning the previous record
+    // if returnPrevious is set and the new one otherwise
+    private IndexRecord compute(String key, BiFunction<? super String, ? super IndexRecord, ? extends IndexRecord> function,
+                                boolean returnPrevious) {
+        int bucket = bucket(key);
+        Stripe stripe = stripe(bucket);
+        synchronized (stripe) {
+            Page page = stripe.page(bucket);
+            IndexRecord current = page.records.get(key);
+            IndexRecord updated = function.apply(key, current);
+            if (updated != current) {
+                if (updated == null) {
+                    page.records.remove(key);
+                    size.decrement();
+                } else if (page.records.put(key, updated) == null) {
+                    size.increment();
+                }
+                page.dirty = true;
+            }
+            return returnPrevious ? current : updated;
+        }
+    }
+
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size.sum());
+    }
+
+    // clear drops every page. The space they took up in the file isn't reused
+    public void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                stripe.cache.clear();
+                for (int bucket = i; bucket < bucketCount; bucket += STRIPES) {
+                    slotOffsets[bucket] = -1;
+                    slotSizes[bucket] = 0;
+                }
+            }
+        }
+        size.reset();
+    }
+
+    // the entry set iterates bucket by bucket over a copy of each page, so it reflects some updates made while
+    // iterating and not others. Pages that aren't cached are read without being added to the cache
+    public Set<Map.Entry<String, IndexRecord>> entrySet() {
+        return new AbstractSet<Map.Entry<String, IndexRecord>>() {
+            public int size() {
+                return SpillableIndex.this.size();
+            }
+
+            public Iterator<Map.Entry<String, IndexRecord>> iterator() {
+                return new Iterator<Map.Entry<String, IndexRecord>>() {
+                    private int nextBucket = 0;
+                    private Iterator<Map.Entry<String, IndexRecord>> entries = Collections.emptyIterator();
+
+                    public boolean hasNext() {
+                        while (!entries.hasNext() && nextBucket < bucketCount) {
+                            int bucket = nextBucket++;
+                            Stripe stripe = stripe(bucket);
+                            synchronized (stripe) {
+                                entries = new ArrayList<Map.Entry<String, IndexRecord>>(stripe.peek(bucket).entrySet()).iterator();
+                            }
+                        }
+                        return entries.hasNext();
+                    }
+
+                    public Map.Entry<String, IndexRecord> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, IndexRecord> entry = entries.next();
+                        return new AbstractMap.SimpleImmutableEntry<String, IndexRecord>(entry.getKey(), entry.getValue());
+                    }
+                };
+            }
+        };
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), pageWrites.sum(), fileEnd.get());
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        file.delete();
+    }
+
+    // the page format is a record count followed by each record's key, segment, value length and value offset
+    private Map<String, IndexRecord> readPage(int bucket) {
+        Map<String, IndexRecord> records = new HashMap<String, IndexRecord>();
+        if (slotOffsets[bucket] < 0) {
+            return records;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, slotOffsets[bucket]);
+            ByteBuffer page = ByteBuffer.allocate(length.getInt(0));
+            readFully(page, slotOffsets[bucket] + 4);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(page.array()));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                String fileName = readString(in);
+                records.put(key, new IndexRecord(fileName, in.readInt(), in.readInt()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read index page for bucket " + bucket, e);
+        }
+        return records;
+    }
+
+    private void writePage(int bucket, Map<String, IndexRecord> records) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(records.size());
+            for (Map.Entry<String, IndexRecord> entry : records.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue().fileName);
+                out.writeInt(entry.getValue().valueLength);
+                out.writeInt(entry.getValue().valueOffset);
+            }
+            ByteBuffer page = ByteBuffer.wrap(bytes.toByteArray());
+            page.putInt(0, page.remaining() - 4);
+
+            if (page.remaining() > slotSizes[bucket]) {
+                int slotSize = Math.max(MIN_SLOT_SIZE, Math.max(page.remaining(), slotSizes[bucket] * 2));
+                slotOffsets[bucket] = fileEnd.getAndAdd(slotSize);
+                slotSizes[bucket] = slotSize;
+            }
+            long position = slotOffsets[bucket];
+            while (page.hasRemaining()) {
+                position += channel.write(page, position);
+            }
+            pageWrites.increment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not write index page for bucket " + bucket, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of index file " + file.getName());
+            }
+            position += read;
+        }
+    }
+
+    private static class Page {
+        Map<String, IndexRecord> records;
+        // set once the page differs from what's in the file
+        boolean dirty = false;
+
+        Page(Map<String, IndexRecord> records) {
+            this.records = records;
+        }
+    }
+
+    // all access to a stripe's pages and to the file slots of its buckets happens under the stripe's lock
+    private class Stripe {
+        private int capacity;
+        // kept in insertion order and moved to the end by page on a hit, so that peek can look pages up without
+        // changing which ones are evicted next
+        private LinkedHashMap<Integer, Page> cache = new LinkedHashMap<Integer, Page>();
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        Page page(int bucket) {
+            Page page = cache.remove(bucket);
+            if (page != null) {
+                cache.put(bucket, page);
+                hits.increment();
+                return page;
+            }
+            misses.increment();
+            page = new Page(readPage(bucket));
+            cache.put(bucket, page);
+
+            Iterator<Map.Entry<Integer, Page>> lru = cache.entrySet().iterator();
+            while (cache.size() > capacity) {
+                Map.Entry<Integer, Page> eldest = lru.next();
+                if (eldest.getValue().dirty) {
+                    writePage(eldest.getKey(), eldest.getValue().records);
+                }
+                lru.remove();
+                evictions.increment();
+            }
+            return page;
+        }
+
+        // peek returns a bucket's records without caching its page or counting as a use of it
+        Map<String, IndexRecord> peek(int bucket) {
+            Page page = cache.get(bucket);
+            return page != null ? page.records : readPage(bucket);
+        }
+    }
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long pageWrites;
+        // how much of the index file is in use, including room pages have been given to grow into
+        public final long fileSize;
+
+        Stats(long hits, long misses, long evictions, long pageWrites, long fileSize) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.pageWrites = pageWrites;
+            this.fileSize = fileSize;
+        }
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+}
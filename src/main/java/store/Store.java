@@ -1,9 +1,22 @@
 package store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public interface Store extends AutoCloseable {
     public String get(String key) throws IOException;
+    public ByteBuffer getBuffer(String key) throws IOException;
     public void put(String key, String value) throws IOException;
     public void delete(String key) throws IOException;
+    public boolean compareAndSet(String key, String expected, String value) throws IOException;
+    public String putIfAbsent(String key, String value) throws IOException;
+    public long increment(String key, long delta) throws IOException;
+    public CompletableFuture<String> getAsync(String key);
+    public CompletableFuture<Void> putAsync(String key, String value);
+    public CompletableFuture<Void> deleteAsync(String key);
+    public Stream<Map.Entry<String, String>> scan() throws IOException;
+    public LoadStatus loadStatus();
 }
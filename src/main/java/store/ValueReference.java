@@ -0,0 +1,59 @@
+package store;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// ValueReference describes how deduplicated values are stored. Each distinct value is written once to a blob file
+// under the blobs directory of a data directory, and the record for every key holding it stores a reference
+// instead of the value: the blob's name followed by the value's length. Blob files hold just the value's bytes, so
+// the index points straight into the blob and reads go through a Segment like any other value.
+//
+// Blob names are the value's SHA-256 followed by a unique suffix. A blob that's been garbage collected is never
+// written again under the same name, so a read racing with its removal can't end up reading a newer copy
+final class ValueReference {
+    static final String BLOB_DIRECTORY = "blobs";
+    private static final String BLOB_PREFIX = BLOB_DIRECTORY + "/";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ValueReference() {
+    }
+
+    static String hash(byte[] value) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] hash = digest.digest(value);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    static String blobName(String hash, long id) {
+        return BLOB_PREFIX + hash + "-" + id;
+    }
+
+    static boolean isBlob(String fileName) {
+        return fileName.startsWith(BLOB_PREFIX);
+    }
+
+    // blobHash returns the hash part of a blob's name
+    static String blobHash(String blobName) {
+        return blobName.substring(BLOB_PREFIX.length(), blobName.lastIndexOf('-'));
+    }
+
+    static String encode(String blobName, int valueLength) {
+        return blobName + " " + valueLength;
+    }
+
+    // decode returns where the referenced value is stored
+    static IndexRecord decode(String reference) {
+        int separator = reference.lastIndexOf(' ');
+        return new IndexRecord(reference.substring(0, separator), Integer.parseInt(reference.substring(separator + 1)), 0);
+    }
+}
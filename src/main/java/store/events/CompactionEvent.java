@@ -0,0 +1,33 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// CompactionEvent is a group of segments being merged into one
+@Name("mapsack.Compaction")
+@Label("Segment Compaction")
+@Category({ "MapSack", "Segments" })
+@StackTrace(false)
+public class CompactionEvent extends Event {
+    @Label("First Segment")
+    public String firstSegment;
+
+    @Label("Last Segment")
+    public String lastSegment;
+
+    @Label("Segments")
+    public int segments;
+
+    @Label("Compacted Segment")
+    public String compactedSegment;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Live Keys")
+    public int liveKeys;
+}
@@ -0,0 +1,26 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// HintFileEvent is a hint file being saved or loaded. A load that fails its checksum has succeeded unset
+@Name("mapsack.HintFile")
+@Label("Hint File")
+@Category({ "MapSack", "Segment I/O" })
+@StackTrace(false)
+public class HintFileEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Entries")
+    public int entries;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,22 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// IndexLoadEvent is the index being rebuilt from the segments on disk
+@Name("mapsack.IndexLoad")
+@Label("Index Load")
+@Category({ "MapSack", "Recovery" })
+@StackTrace(false)
+public class IndexLoadEvent extends Event {
+    @Label("Segments")
+    public int segments;
+
+    @Label("Keys")
+    public long keys;
+
+    @Label("Background")
+    public boolean background;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,26 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// SegmentReadEvent is a positional read of a value from a segment file, or a view of it in the segment's mapping.
+// A mapped read only covers finding the view (and mapping the segment the first time), since the bytes are read
+// later by whoever consumes the buffer
+@Name("mapsack.SegmentRead")
+@Label("Segment Read")
+@Category({ "MapSack", "Segment I/O" })
+@StackTrace(false)
+@Threshold("1 ms")
+public class SegmentReadEvent extends Event {
+    @Label("Segment")
+    public String segment;
+
+    @Label("Offset")
+    public long offset;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Mapped")
+    public boolean mapped;
+}
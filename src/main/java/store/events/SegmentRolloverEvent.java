@@ -0,0 +1,24 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// SegmentRolloverEvent is the active segment being replaced by a new one. Its duration includes any wait for the
+// roller to finish preparing the next segment
+@Name("mapsack.SegmentRollover")
+@Label("Segment Rollover")
+@Category({ "MapSack", "Segments" })
+public class SegmentRolloverEvent extends Event {
+    @Label("Full Segment")
+    public String fullSegment;
+
+    @Label("Full Segment Size")
+    @DataAmount
+    public long fullSegmentBytes;
+
+    @Label("New Segment")
+    public String newSegment;
+
+    @Label("Prepared")
+    @Description("Whether the new segment had been prepared ahead of time by the roller")
+    public boolean prepared;
+}
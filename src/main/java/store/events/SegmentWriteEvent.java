@@ -0,0 +1,25 @@
+package store.events;
+
+import jdk.jfr.*;
+
+// SegmentWriteEvent is an append of one or more encoded records to a segment. Buffered writes that only copy
+// into the segment's write buffer are reported too, with buffered set
+@Name("mapsack.SegmentWrite")
+@Label("Segment Write")
+@Category({ "MapSack", "Segment I/O" })
+@StackTrace(false)
+@Threshold("1 ms")
+public class SegmentWriteEvent extends Event {
+    @Label("Segment")
+    public String segment;
+
+    @Label("Offset")
+    public long offset;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Buffered")
+    public boolean buffered;
+}
@@ -2,17 +2,48 @@ import org.junit.Rule;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.migrationsupport.rules.EnableRuleMigrationSupport;
 import org.junit.rules.TemporaryFolder;
+import client.RouterStore;
+import loadgen.KeyDistribution;
+import loadgen.LatencyHistogram;
+import loadgen.LoadGenerator;
+import loadgen.Report;
+import server.DBServer;
 import store.*;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 @EnableRuleMigrationSupport
 public class TestHashIndexStore {
@@ -101,6 +132,116 @@ public class TestHashIndexStore {
         // TODO: make sure we don't try to compact active log file...
     }
 
+    @Test
+    public void testReadsDuringCompaction() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "old value " + i);
+        }
+        store.close();
+        Thread.sleep(1);
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 0; i < 100; i += 2) {
+            store.put("key" + i, "new value " + i);
+        }
+
+        HashIndexStore compactingStore = store;
+        AtomicBoolean compacting = new AtomicBoolean(true);
+        AtomicReference<Throwable> readError = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (compacting.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        String expected = (i % 2 == 0 ? "new value " : "old value ") + i;
+                        assertEquals(expected, compactingStore.get("key" + i));
+                    }
+                }
+            } catch (Throwable e) {
+                readError.set(e);
+            }
+        });
+        reader.start();
+
+        File[] segments = dataDir.listFiles(TestHashIndexStore.ignoreHintFiles);
+        HashIndexStore.sortSegments(segments);
+        store.compactSegments(segments[0], segments[1]);
+        compacting.set(false);
+        reader.join();
+
+        if (readError.get() != null) {
+            fail("read failed during compaction", readError.get());
+        }
+        for (int i = 0; i < 100; i++) {
+            new KeyTest("key" + i, (i % 2 == 0 ? "new value " : "old value ") + i).evaluate(store);
+        }
+        store.close();
+    }
+
+    @Test
+    public void testWritesDuringCompaction() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            padding.append('x');
+        }
+        for (String generation : Arrays.asList("first", "second")) {
+            HashIndexStore store = new HashIndexStore(dataDir);
+            store.loadIndex();
+            for (int i = 0; i < 1000; i++) {
+                store.put("key" + i, generation + " " + i + padding);
+            }
+            store.close();
+            Thread.sleep(1);
+        }
+
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        File[] segments = dataDir.listFiles(TestHashIndexStore.ignoreHintFiles);
+        HashIndexStore.sortSegments(segments);
+
+        // a write that lands while the segments are merged must not be replaced by the compacted, older record
+        HashIndexStore compactingStore = store;
+        AtomicBoolean compacting = new AtomicBoolean(true);
+        AtomicReference<Throwable> writeError = new AtomicReference<>();
+        Map<String, String> written = new HashMap<String, String>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int round = 0; compacting.get() || round == 0; round++) {
+                    for (int i = 0; i < 1000; i++) {
+                        String value = "overwritten " + round + " " + i;
+                        compactingStore.put("key" + i, value);
+                        written.put("key" + i, value);
+                    }
+                }
+            } catch (Throwable e) {
+                writeError.set(e);
+            }
+        });
+        writer.start();
+        store.compactSegments(segments[0], segments[1]);
+        compacting.set(false);
+        writer.join();
+
+        if (writeError.get() != null) {
+            fail("write failed during compaction", writeError.get());
+        }
+        for (int i = 0; i < 1000; i++) {
+            new KeyTest("key" + i, written.get("key" + i)).evaluate(store);
+        }
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 0; i < 1000; i++) {
+            new KeyTest("key" + i, written.get("key" + i)).evaluate(store);
+        }
+        store.close();
+    }
+
     @Test
     public void testDeletion() throws Exception {
         File dataDir = tempFolder.newFolder();
@@ -141,6 +282,67 @@ public class TestHashIndexStore {
         });
     }
 
+    @Test
+    public void testLargeValues() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+
+        StringBuilder largeValue = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            largeValue.append((char) ('a' + i % 26));
+        }
+        KeyTest keyTest1 = new KeyTest("large", largeValue.toString());
+        KeyTest keyTest2 = new KeyTest("", "empty key");
+        KeyTest keyTest3 = new KeyTest("after large", "small value");
+        store.put(keyTest1.key, keyTest1.value);
+        store.put(keyTest2.key, keyTest2.value);
+        store.put(keyTest3.key, keyTest3.value);
+        keyTest1.evaluate(store);
+        keyTest2.evaluate(store);
+        keyTest3.evaluate(store);
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        keyTest1.evaluate(store);
+        keyTest2.evaluate(store);
+        keyTest3.evaluate(store);
+        store.close();
+    }
+
+    @Test
+    public void testGetBuffer() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+
+        StringBuilder largeValue = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            largeValue.append((char) ('a' + i % 26));
+        }
+        store.put("small", "small value");
+        store.put("large", largeValue.toString());
+
+        assertEquals(ByteBuffer.wrap("small value".getBytes()), store.getBuffer("small"));
+        assertEquals(ByteBuffer.wrap(largeValue.toString().getBytes()), store.getBuffer("large"),
+                "expected value in the active segment to match what was put");
+        assertEquals(null, store.getBuffer("missing"));
+        store.close();
+
+        // once the segment is sealed, large values are views of one mapping of it
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        store.put("small", "written after the large value's segment was sealed");
+        ByteBuffer first = store.getBuffer("large");
+        ByteBuffer second = store.getBuffer("large");
+        assertEquals(ByteBuffer.wrap(largeValue.toString().getBytes()), first,
+                "expected mapped value to match what was put");
+        assertEquals(first, second);
+        assertTrue(first.isDirect() && first.isReadOnly(), "expected a read-only view of the mapped segment");
+        assertEquals(largeValue.length(), first.remaining());
+        store.close();
+    }
+
     @Test
     public void testCorruptRecord() throws Exception {
         File dataDir = tempFolder.newFolder();
@@ -166,6 +368,36 @@ public class TestHashIndexStore {
         });
     }
 
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+
+        KeyTest keyTest1 = new KeyTest("key 1", "val 1");
+        KeyTest keyTest2 = new KeyTest("key 2", "val 2");
+        KeyTest keyTest3 = new KeyTest("key 3", "val 3 val 3 val 3");
+        store.put(keyTest1.key, keyTest1.value);
+        store.delete(keyTest1.key);
+        store.put(keyTest2.key, keyTest2.value);
+        store.put(keyTest3.key, keyTest3.value);
+        store.close();
+
+        // simulate a crash part way through writing the last record
+        File segmentFile = dataDir.listFiles(TestHashIndexStore.ignoreHintFiles)[0];
+        try (RandomAccessFile writer = new RandomAccessFile(segmentFile, "rw")) {
+            writer.setLength(segmentFile.length() - 5);
+        }
+        Thread.sleep(1);
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        assertEquals(null, store.get(keyTest1.key), "expected deleted key to stay deleted");
+        keyTest2.evaluate(store);
+        assertEquals(null, store.get(keyTest3.key), "expected truncated record to be dropped");
+        store.close();
+    }
+
     @Test
     public void testTriggerSegmentSwitch() throws Exception {
         File dataDir = tempFolder.newFolder();
@@ -188,6 +420,883 @@ public class TestHashIndexStore {
         }
     }
 
+    @Test
+    public void testConcurrentSegmentRollover() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(200);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        AtomicReference<Throwable> writeError = new AtomicReference<>();
+        for (int t = 0; t < 4; t++) {
+            int writer = t;
+            writers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        store.put("writer" + writer + "-key" + i, "value " + i);
+                    }
+                } catch (Throwable e) {
+                    writeError.set(e);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (writeError.get() != null) {
+            fail("write failed during rollover", writeError.get());
+        }
+
+        assertTrue(dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length > 10,
+                "expected segments to be rolled over");
+        store.close();
+
+        HashIndexStore reloaded = new HashIndexStore(dataDir);
+        reloaded.loadIndex();
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < 200; i++) {
+                new KeyTest("writer" + t + "-key" + i, "value " + i).evaluate(reloaded);
+            }
+        }
+        reloaded.close();
+    }
+
+    @Test
+    public void testSegmentAgeRollover() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumSegmentAge(20);
+
+        store.put("key1", "val1");
+        Thread.sleep(100);
+        assertEquals(2, dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length,
+                "expected the active segment to be rolled over once it got too old");
+
+        // an empty active segment isn't rolled over
+        Thread.sleep(100);
+        assertEquals(2, dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length);
+        store.close();
+    }
+
+    @Test
+    public void testChangeFeed() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(100);
+        ChangeFeed feed = store.changes();
+        ChangeFeed.Position start = feed.head();
+
+        ChangeFeed.Batch batch = feed.read(start, 100, 10);
+        assertEquals(0, batch.events.size(), "expected no events before any writes");
+
+        BlockingQueue<ChangeFeed.Event> subscribed = new LinkedBlockingQueue<ChangeFeed.Event>();
+        ChangeFeed.Subscription subscription = feed.subscribe(start, subscribed::add);
+
+        // enough writes to roll over several segments
+        for (int i = 0; i < 20; i++) {
+            store.put("key" + i, "value " + i);
+        }
+        store.delete("key3");
+
+        List<ChangeFeed.Event> events = new ArrayList<ChangeFeed.Event>();
+        ChangeFeed.Position position = start;
+        while (events.size() < 21) {
+            batch = feed.read(position, 7, 1000);
+            assertTrue(batch.events.size() > 0, "expected events to be available");
+            events.addAll(batch.events);
+            position = batch.next;
+        }
+        assertEquals(21, events.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("key" + i, events.get(i).getKey());
+            assertEquals("value " + i, events.get(i).getValue());
+        }
+        assertEquals("key3", events.get(20).getKey());
+        assertTrue(events.get(20).isDeleted(), "expected delete event");
+
+        for (int i = 0; i < 21; i++) {
+            ChangeFeed.Event event = subscribed.poll(1, TimeUnit.SECONDS);
+            assertNotEquals(null, event, "expected subscriber to receive every event");
+            assertEquals(events.get(i).getKey(), event.getKey());
+        }
+        subscription.close();
+
+        // a long poll returns as soon as there's a write
+        ChangeFeed.Position head = position;
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                store.put("late", "value");
+            } catch (Exception e) {
+            }
+        });
+        writer.start();
+        batch = feed.read(head, 100, 5000);
+        writer.join();
+        assertEquals(1, batch.events.size());
+        assertEquals("late", batch.events.get(0).getKey());
+
+        // asynchronous reads wait without a thread, and complete on the next write or when they time out
+        head = batch.next;
+        CompletableFuture<ChangeFeed.Batch> expiring = feed.readAsync(head, 100, 50);
+        List<CompletableFuture<ChangeFeed.Batch>> waiting = new ArrayList<CompletableFuture<ChangeFeed.Batch>>();
+        for (int i = 0; i < 50; i++) {
+            waiting.add(feed.readAsync(head, 100, 10000));
+        }
+        assertEquals(0, expiring.get(5, TimeUnit.SECONDS).events.size());
+        assertTrue(!waiting.get(0).isDone(), "expected the read to wait for a write");
+        store.put("async", "value");
+        for (CompletableFuture<ChangeFeed.Batch> read : waiting) {
+            batch = read.get(5, TimeUnit.SECONDS);
+            assertEquals(1, batch.events.size());
+            assertEquals("async", batch.events.get(0).getKey());
+        }
+
+        // and so does a long poll over HTTP
+        DBServer server = new DBServer(store);
+        server.setPort(0);
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getPort() + "/changes?segment=" + batch.next.segment
+                    + "&offset=" + batch.next.offset;
+            CompletableFuture<HttpResponse<String>> poll = HttpClient.newHttpClient().sendAsync(
+                    HttpRequest.newBuilder(URI.create(url)).GET().build(), HttpResponse.BodyHandlers.ofString());
+            Thread.sleep(50);
+            store.put("polled", "value");
+            HttpResponse<String> response = poll.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("polled"), "expected the change in the response, got " + response.body());
+        } finally {
+            server.stop();
+        }
+        store.close();
+    }
+
+    @Test
+    public void testAccessSampling() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.accessSampler().setSampleRate(1);
+
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value " + i);
+        }
+        for (int i = 0; i < 500; i++) {
+            store.get("hot");
+            store.put("hot", "value " + i);
+            store.get("key" + (i % 100));
+        }
+
+        AccessSampler.Snapshot snapshot = store.accessSampler().snapshot();
+        assertEquals("hot", snapshot.topWrites.get(0).key);
+        assertTrue(snapshot.topWrites.get(0).count >= 500, "count-min estimates should never undercount");
+        assertEquals("hot", snapshot.topReads.get(0).key);
+        long segmentReads = 0;
+        for (long reads : snapshot.segmentReads.values()) {
+            segmentReads += reads;
+        }
+        // the first read of "hot" is a miss
+        assertEquals(999, segmentReads);
+
+        store.accessSampler().reset();
+        assertEquals(0, store.accessSampler().snapshot().topReads.size());
+        store.close();
+    }
+
+    @Test
+    public void testMultipleDataDirectories() throws Exception {
+        List<File> dataDirs = new ArrayList<File>();
+        dataDirs.add(tempFolder.newFolder());
+        dataDirs.add(tempFolder.newFolder());
+        HashIndexStore store = new HashIndexStore(dataDirs);
+        store.setMaximumFileSize(200);
+        store.loadIndex();
+
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + (i % 20), "value " + i);
+        }
+        for (File dataDir : dataDirs) {
+            assertTrue(dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length > 1,
+                    "expected segments to be placed in every data directory");
+        }
+        store.close();
+
+        store = new HashIndexStore(dataDirs);
+        store.loadIndex();
+        for (int i = 80; i < 100; i++) {
+            new KeyTest("key" + (i % 20), "value " + i).evaluate(store);
+        }
+        store.doCompaction();
+        for (int i = 80; i < 100; i++) {
+            new KeyTest("key" + (i % 20), "value " + i).evaluate(store);
+        }
+        store.close();
+
+        store = new HashIndexStore(dataDirs);
+        store.loadIndex();
+        for (int i = 80; i < 100; i++) {
+            new KeyTest("key" + (i % 20), "value " + i).evaluate(store);
+        }
+        store.close();
+    }
+
+    @Test
+    public void testLoadIndexInBackground() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(500);
+        store.loadIndex();
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + (i % 50), "value " + i);
+        }
+        store.delete("key0");
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndexInBackground();
+        store.put("key1", "updated while loading");
+        store.delete("key2");
+        CompletableFuture<String> asyncMiss = store.getAsync("key0");
+        CompletableFuture<String> asyncHit = store.getAsync("key3");
+
+        new KeyTest("key0", null).evaluate(store);
+        new KeyTest("key1", "updated while loading").evaluate(store);
+        new KeyTest("key2", null).evaluate(store);
+        for (int i = 153; i < 200; i++) {
+            new KeyTest("key" + (i % 50), "value " + i).evaluate(store);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!store.loadStatus().isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        LoadStatus status = store.loadStatus();
+        assertEquals(LoadStatus.State.READY, status.state);
+        assertEquals(status.segmentsTotal, status.segmentsLoaded);
+        assertTrue(status.segmentsTotal > 1, "expected the index to be loaded from several segments");
+        assertEquals(null, asyncMiss.get(5, TimeUnit.SECONDS));
+        assertEquals("value 153", asyncHit.get(5, TimeUnit.SECONDS));
+
+        new KeyTest("key0", null).evaluate(store);
+        new KeyTest("key1", "updated while loading").evaluate(store);
+        new KeyTest("key2", null).evaluate(store);
+        new KeyTest("key3", "value 153").evaluate(store);
+        store.close();
+    }
+
+    @Test
+    public void testParallelCompaction() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(300);
+        store.loadIndex();
+        for (int i = 0; i < 400; i++) {
+            store.put("key" + (i % 40), "value " + i);
+        }
+        // deletes that land in later groups have to keep hiding the key's values in earlier ones
+        for (int i = 0; i < 40; i += 4) {
+            store.delete("key" + i);
+        }
+        store.put("key0", "put after delete");
+        store.close();
+
+        int segmentCount = dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length;
+
+        store = new HashIndexStore(dataDir);
+        store.setCompactionGroupSize(2000);
+        store.setCompactionParallelism(3);
+        store.loadIndex();
+        store.doCompaction();
+
+        int compactedCount = dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length;
+        assertTrue(compactedCount > 2, "expected compaction to produce several groups");
+        assertTrue(compactedCount < segmentCount, "expected compaction to merge segments");
+        assertCompactedValues(store);
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        assertCompactedValues(store);
+        store.close();
+    }
+
+    private void assertCompactedValues(HashIndexStore store) throws IOException {
+        new KeyTest("key0", "put after delete").evaluate(store);
+        for (int i = 361; i < 400; i++) {
+            String expected = i % 4 == 0 ? null : "value " + i;
+            new KeyTest("key" + (i % 40), expected).evaluate(store);
+        }
+    }
+
+    @Test
+    public void testDeduplicatedValues() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        File blobDir = new File(dataDir, "blobs");
+        StringBuilder template = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            template.append((char) ('a' + i % 26));
+        }
+        String sharedValue = template.toString();
+
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setDedupThreshold(512);
+        store.loadIndex();
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, sharedValue);
+        }
+        store.put("small", "not deduplicated");
+        assertEquals(1, blobDir.list().length, "expected the shared value to be stored once");
+        assertTrue(segmentBytes(dataDir) < 50 * sharedValue.length(),
+                "expected records to refer to the shared value rather than copy it");
+        new KeyTest("key7", sharedValue).evaluate(store);
+        assertEquals(sharedValue, StandardCharsets.UTF_8.decode(store.getBuffer("key8")).toString());
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.setDedupThreshold(512);
+        store.loadIndex();
+        new KeyTest("key0", sharedValue).evaluate(store);
+        new KeyTest("small", "not deduplicated").evaluate(store);
+
+        // the value is still shared after a restart, and compaction keeps it while any key refers to it
+        store.put("key50", sharedValue);
+        assertEquals(1, blobDir.list().length);
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, "overwritten " + i);
+        }
+        store.doCompaction();
+        assertEquals(1, blobDir.list().length);
+        new KeyTest("key50", sharedValue).evaluate(store);
+
+        store.delete("key50");
+        store.doCompaction();
+        assertEquals(0, blobDir.list().length, "expected the unreferenced value to be removed");
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        new KeyTest("key50", null).evaluate(store);
+        new KeyTest("key3", "overwritten 3").evaluate(store);
+        store.close();
+    }
+
+    @Test
+    public void testSpillableIndex() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        File indexFile = new File(tempFolder.getRoot(), "index");
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(20000);
+        SpillableIndex index = new SpillableIndex(indexFile, 256, 64);
+        store.setIndex(index);
+        store.loadIndex();
+        for (int i = 0; i < 3000; i++) {
+            store.put("key" + (i % 1000), "value " + i);
+        }
+        for (int i = 0; i < 1000; i += 10) {
+            store.delete("key" + i);
+        }
+        assertEquals(900, index.size());
+        for (int i = 2000; i < 3000; i++) {
+            new KeyTest("key" + (i % 1000), i % 10 == 0 ? null : "value " + i).evaluate(store);
+        }
+        SpillableIndex.Stats stats = index.stats();
+        assertTrue(stats.evictions > 0, "expected pages to be evicted from the cache");
+        assertTrue(stats.hitRate() > 0 && stats.hitRate() < 1);
+        store.close();
+        assertTrue(!indexFile.exists(), "expected the index file to be removed on close");
+
+        store = new HashIndexStore(dataDir);
+        index = new SpillableIndex(indexFile, 256, 64);
+        store.setIndex(index);
+        store.loadIndex();
+        assertEquals(900, index.size());
+        store.doCompaction();
+        for (int i = 2000; i < 3000; i++) {
+            new KeyTest("key" + (i % 1000), i % 10 == 0 ? null : "value " + i).evaluate(store);
+        }
+        try (Stream<Map.Entry<String, String>> records = store.scan()) {
+            assertEquals(900, records.count());
+        }
+        store.close();
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.setMaximumFileSize(4000);
+        store.loadIndex();
+
+        List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 2000; i++) {
+            writes.add(store.putAsync("key" + (i % 500), "value " + i));
+        }
+        for (int i = 0; i < 500; i += 7) {
+            writes.add(store.deleteAsync("key" + i));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        List<CompletableFuture<String>> reads = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 500; i++) {
+            reads.add(store.getAsync("key" + i));
+        }
+        for (int i = 0; i < 500; i++) {
+            String expected = i % 7 == 0 ? null : "value " + (1500 + i);
+            assertEquals(expected, reads.get(i).get(10, TimeUnit.SECONDS));
+            new KeyTest("key" + i, expected).evaluate(store);
+        }
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 0; i < 500; i++) {
+            new KeyTest("key" + i, i % 7 == 0 ? null : "value " + (1500 + i)).evaluate(store);
+        }
+        store.close();
+    }
+
+    @Test
+    public void testWriteBuffer() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        store.setWriteBufferInterval(60 * 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            store.put("counter", Integer.toString(i));
+            store.put("key" + (i % 10), "value " + i);
+        }
+        store.delete("key0");
+        CompletableFuture<Void> flushed = store.putAsync("session", "active");
+
+        // nothing has been written yet, but reads see the buffered writes
+        assertEquals(0, segmentBytes(dataDir));
+        new KeyTest("counter", "999").evaluate(store);
+        new KeyTest("key0", null).evaluate(store);
+        new KeyTest("key9", "value 999").evaluate(store);
+        assertEquals("active", store.getAsync("session").get(10, TimeUnit.SECONDS));
+        assertTrue(!flushed.isDone(), "expected buffered write to complete once flushed");
+
+        store.flushWriteBuffer();
+        flushed.get(10, TimeUnit.SECONDS);
+        assertTrue(segmentBytes(dataDir) < 1000, "expected overwrites to be written once");
+        new KeyTest("counter", "999").evaluate(store);
+        new KeyTest("key0", null).evaluate(store);
+
+        store.setWriteBufferInterval(10);
+        store.put("counter", "flushed on a timer");
+        Thread.sleep(200);
+        store.setWriteBufferInterval(0);
+        store.close();
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        new KeyTest("counter", "flushed on a timer").evaluate(store);
+        new KeyTest("key0", null).evaluate(store);
+        new KeyTest("key5", "value 995").evaluate(store);
+        new KeyTest("session", "active").evaluate(store);
+
+        // turning buffering on and off while keys are written keeps each key's writes in order
+        HashIndexStore toggled = store;
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < 4; w++) {
+            String key = "writer" + w;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        if (i % 2 == 0) {
+                            toggled.put(key, Integer.toString(i));
+                        } else {
+                            toggled.putAsync(key, Integer.toString(i)).get(10, TimeUnit.SECONDS);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (int i = 0; writers.stream().anyMatch(Thread::isAlive); i++) {
+            store.setWriteBufferInterval(i % 2 == 0 ? 5 : 0);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        store.setWriteBufferInterval(0);
+        for (int w = 0; w < 4; w++) {
+            new KeyTest("writer" + w, "1999").evaluate(store);
+        }
+        store.close();
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int w = 0; w < 4; w++) {
+            new KeyTest("writer" + w, "1999").evaluate(store);
+        }
+        store.close();
+    }
+
+    @Test
+    public void testAtomicOperations() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+
+        assertTrue(!store.compareAndSet("key1", "val1", "val2"), "expected CAS of unset key to fail");
+        assertTrue(store.compareAndSet("key1", null, "val1"), "expected CAS of unset key to succeed");
+        assertTrue(!store.compareAndSet("key1", "other", "val2"), "expected CAS with wrong value to fail");
+        assertTrue(store.compareAndSet("key1", "val1", "val2"), "expected CAS with current value to succeed");
+        new KeyTest("key1", "val2").evaluate(store);
+
+        assertEquals(null, store.putIfAbsent("key2", "first"));
+        assertEquals("first", store.putIfAbsent("key2", "second"));
+        new KeyTest("key2", "first").evaluate(store);
+
+        try {
+            store.increment("key2", 1);
+            fail("expected increment of non-numeric value to fail");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+
+        // increments from several threads, with plain writes of other keys in between, must not lose updates
+        List<Thread> threads = new ArrayList<Thread>();
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        store.increment("counter", 1);
+                        store.putAsync("thread" + thread, Integer.toString(i));
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(null, failure.get());
+        new KeyTest("counter", "4000").evaluate(store);
+
+        // with writes buffered the read-modify-write sees the buffered value
+        store.setWriteBufferInterval(60 * 1000);
+        assertEquals(4010, store.increment("counter", 10));
+        assertEquals(4005, store.increment("counter", -5));
+        store.close();
+
+        HashIndexStore reopened = new HashIndexStore(dataDir);
+        reopened.loadIndex();
+        new KeyTest("counter", "4005").evaluate(reopened);
+        reopened.close();
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        File recordingFile = new File(tempFolder.newFolder(), "store.jfr");
+
+        try (Recording recording = new Recording()) {
+            for (String event : new String[] { "SegmentRead", "SegmentWrite", "SegmentRollover", "Compaction",
+                    "HintFile", "IndexLoad" }) {
+                recording.enable("mapsack." + event).withoutThreshold();
+            }
+            recording.start();
+
+            HashIndexStore store = new HashIndexStore(dataDir);
+            store.setMaximumFileSize(256);
+            store.loadIndex();
+            for (int i = 0; i < 100; i++) {
+                store.put("key" + (i % 10), "value " + i);
+            }
+            new KeyTest("key3", "value 93").evaluate(store);
+            store.doCompaction();
+            store.close();
+
+            store = new HashIndexStore(dataDir);
+            store.loadIndex();
+            new KeyTest("key3", "value 93").evaluate(store);
+            store.close();
+
+            recording.stop();
+            recording.dump(recordingFile.toPath());
+        }
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+            counts.merge(event.getEventType().getName(), 1, Integer::sum);
+            if (event.getEventType().getName().equals("mapsack.SegmentRead")) {
+                assertEquals("value 93".length(), event.getLong("bytes"));
+            }
+        }
+        for (String event : new String[] { "SegmentRead", "SegmentWrite", "SegmentRollover", "Compaction",
+                "HintFile", "IndexLoad" }) {
+            assertTrue(counts.containsKey("mapsack." + event), "expected mapsack." + event + " events, got " + counts);
+        }
+        assertEquals(2, counts.get("mapsack.IndexLoad"));
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        File root = tempFolder.newFolder();
+        Namespaces namespaces = new Namespaces(root);
+
+        NamespaceConfig sessionConfig = new NamespaceConfig();
+        sessionConfig.maximumFileSize = 256;
+        // long enough that compaction doesn't merge the segments counted below
+        sessionConfig.compactionPeriod = 60 * 60 * 1000;
+        Store sessions = namespaces.create("sessions", sessionConfig);
+        Store catalog = namespaces.create("catalog", new NamespaceConfig());
+
+        try {
+            namespaces.create("sessions", new NamespaceConfig());
+            fail("expected creating an existing namespace to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            namespaces.create("../escape", new NamespaceConfig());
+            fail("expected an invalid namespace name to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        NamespaceConfig noCompaction = new NamespaceConfig();
+        noCompaction.compactionPeriod = 0;
+        try {
+            namespaces.create("uncompacted", noCompaction);
+            fail("expected a compaction period of 0 to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(null, namespaces.get("uncompacted"));
+
+        // the same key is independent in each namespace
+        for (int i = 0; i < 100; i++) {
+            sessions.put("key" + (i % 5), "session " + i);
+        }
+        catalog.put("key1", "catalog");
+        new KeyTest("key1", "session 96").evaluate(sessions);
+        new KeyTest("key1", "catalog").evaluate(catalog);
+        assertEquals(null, namespaces.get("missing"));
+
+        // each namespace has its own segments, rolled over at its own size
+        assertTrue(new File(root, "sessions").listFiles(ignoreHintFiles).length > 5,
+                "expected small session segments to roll over");
+        assertEquals(1, new File(root, "catalog").listFiles(ignoreHintFiles).length);
+
+        // every endpoint is served under a namespace, against its store rather than the default one
+        HashIndexStore defaultStore = new HashIndexStore(tempFolder.newFolder());
+        defaultStore.loadIndex();
+        DBServer server = new DBServer(defaultStore, namespaces);
+        server.setPort(0);
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getPort() + "/ns/catalog";
+            HttpClient http = HttpClient.newHttpClient();
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(url + "/increment?key=counter&delta=3"))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            response = http.send(HttpRequest.newBuilder(URI.create(url + "/batch/put"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"batched\":\"in catalog\"}")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            response = http.send(HttpRequest.newBuilder(URI.create(url + "?key=batched")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("in catalog"), "expected the batched value, got " + response.body());
+            response = http.send(HttpRequest.newBuilder(URI.create(url + "/export")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertTrue(response.body().contains("batched"), "expected the export to hold the namespace's keys");
+            response = http.send(HttpRequest.newBuilder(URI.create(url + "/admin/ready")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            response = http.send(HttpRequest.newBuilder(URI.create(url.replace("catalog", "missing") + "/cas?key=k&value=v"))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(404, response.statusCode());
+
+            // settings that are out of range are a bad request, and don't create the namespace
+            String namespacesUrl = "http://localhost:" + server.getPort() + "/ns/";
+            for (String setting : Arrays.asList("maximumFileSize=0", "maximumFileSize=-1", "compactionPeriod=0",
+                    "compactionPeriod=-1000", "maximumSegmentAge=-1", "writeBufferInterval=-5")) {
+                response = http.send(HttpRequest.newBuilder(URI.create(namespacesUrl + "invalid?" + setting))
+                        .PUT(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(400, response.statusCode(), "expected " + setting + " to be refused");
+            }
+            assertEquals(null, namespaces.get("invalid"));
+            assertTrue(!new File(root, "invalid").exists(), "expected no directory for a refused namespace");
+
+            new KeyTest("counter", "3").evaluate(catalog);
+            new KeyTest("counter", null).evaluate(defaultStore);
+            new KeyTest("batched", null).evaluate(defaultStore);
+        } finally {
+            server.stop();
+            defaultStore.close();
+        }
+        namespaces.close();
+
+        namespaces = new Namespaces(root);
+        assertEquals(new TreeSet<String>(Arrays.asList("catalog", "sessions")), namespaces.names());
+        new KeyTest("key4", "session 99").evaluate(namespaces.get("sessions"));
+        new KeyTest("key1", "catalog").evaluate(namespaces.get("catalog"));
+
+        // the configuration is kept across restarts
+        int sessionSegments = new File(root, "sessions").listFiles(ignoreHintFiles).length;
+        for (int i = 0; i < 100; i++) {
+            namespaces.get("sessions").put("key" + (i % 5), "reopened " + i);
+        }
+        assertTrue(new File(root, "sessions").listFiles(ignoreHintFiles).length > sessionSegments + 5,
+                "expected the reopened namespace to keep its segment size");
+        namespaces.close();
+    }
+
+    @Test
+    public void testRouterStore() throws Exception {
+        List<HashIndexStore> stores = new ArrayList<HashIndexStore>();
+        List<DBServer> servers = new ArrayList<DBServer>();
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            HashIndexStore store = new HashIndexStore(tempFolder.newFolder());
+            store.loadIndex();
+            DBServer server = new DBServer(store);
+            server.setPort(0);
+            server.start();
+            stores.add(store);
+            servers.add(server);
+            nodes.add("http://localhost:" + server.getPort());
+        }
+
+        try (RouterStore router = new RouterStore(nodes.subList(0, 3))) {
+            for (int i = 0; i < 300; i++) {
+                router.put("key" + i, "value " + i);
+            }
+            new KeyTest("key7", "value 7").evaluate(router);
+            new KeyTest("missing", null).evaluate(router);
+            // every key is on exactly one node, and each node has a share of them
+            for (int i = 0; i < 3; i++) {
+                long held = stores.get(i).scan().count();
+                assertTrue(held > 50 && held < 150, "expected node " + i + " to hold about a third of the keys, got " + held);
+            }
+            assertEquals(300, router.scan().count());
+
+            router.delete("key8");
+            new KeyTest("key8", null).evaluate(router);
+            assertTrue(router.compareAndSet("key9", "value 9", "swapped"));
+            assertTrue(!router.compareAndSet("key9", "value 9", "again"));
+            assertEquals("swapped", router.putIfAbsent("key9", "other"));
+            assertEquals(5, router.increment("counter", 5));
+            assertEquals("value 10", router.getAsync("key10").get(10, TimeUnit.SECONDS));
+            router.putAsync("async", "written").get(10, TimeUnit.SECONDS);
+            new KeyTest("async", "written").evaluate(router);
+
+            // a value too big for a URL goes in the request body
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 300 * 1024; i++) {
+                large.append((char) ('a' + i % 26));
+            }
+            router.put("large", large.toString());
+            assertEquals(large.length(), router.getBuffer("large").remaining());
+
+            Map<String, String> batch = new HashMap<String, String>();
+            for (int i = 0; i < 50; i++) {
+                batch.put("batch" + i, "batched " + i);
+            }
+            batch.put("key11", null);
+            router.putAll(batch);
+            Map<String, String> values = router.getAll(Arrays.asList("batch3", "batch49", "key11", "key12"));
+            assertEquals("batched 3", values.get("batch3"));
+            assertEquals("batched 49", values.get("batch49"));
+            assertEquals("value 12", values.get("key12"));
+            assertTrue(!values.containsKey("key11"), "expected deleted key to be left out");
+
+            // adding a node only moves the keys that now belong to it
+            long total = router.scan().count();
+            router.addNode(nodes.get(3));
+            long moved = stores.get(3).scan().count();
+            assertTrue(moved > total / 8 && moved < total / 2, "expected about a quarter of the keys to move, got " + moved);
+            assertEquals(total, router.scan().count());
+            for (int i = 0; i < 300; i++) {
+                if (i != 8 && i != 9 && i != 11) {
+                    new KeyTest("key" + i, "value " + i).evaluate(router);
+                }
+            }
+
+            router.removeNode(nodes.get(0));
+            assertEquals(3, router.nodes().size());
+            assertEquals(total, router.scan().count());
+            new KeyTest("key9", "swapped").evaluate(router);
+            new KeyTest("batch17", "batched 17").evaluate(router);
+            assertEquals(LoadStatus.State.READY, router.loadStatus().state);
+        } finally {
+            for (DBServer server : servers) {
+                server.stop();
+            }
+            for (HashIndexStore store : stores) {
+                store.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertTrue(Math.abs(histogram.percentile(50) - 50000) <= 50000 / 500, "expected p50 near 50000");
+        assertTrue(Math.abs(histogram.percentile(99.9) - 99900) <= 99900 / 500, "expected p99.9 near 99900");
+        assertEquals(100000, histogram.max());
+
+        // the hottest zipfian key gets far more than its share
+        KeyDistribution zipfian = KeyDistribution.zipfian(1000, 0.99);
+        int hottest = 0;
+        for (int i = 0; i < 10000; i++) {
+            hottest += zipfian.next() == 0 ? 1 : 0;
+        }
+        assertTrue(hottest > 500, "expected key 0 to be hot, got " + hottest + " of 10000");
+
+        HashIndexStore store = new HashIndexStore(tempFolder.newFolder());
+        store.loadIndex();
+        DBServer server = new DBServer(store);
+        server.setPort(0);
+        server.start();
+        try {
+            LoadGenerator generator = new LoadGenerator("http://localhost:" + server.getPort());
+            generator.setRate(500);
+            generator.setDuration(1000);
+            generator.setWarmup(0);
+            generator.setKeys(100, KeyDistribution.uniform(100));
+            generator.setMix(50, 40, 10);
+            generator.setValueSize(10, 200);
+            Report report = generator.run();
+
+            assertEquals(500, report.requests);
+            assertEquals(500, report.reads + report.writes + report.deletes);
+            assertEquals(0, report.errors);
+            assertTrue(report.writes > 0 && report.deletes > 0, "expected a mix of operations");
+            assertTrue(report.latency.p99 >= report.latency.p50 && report.latency.max >= report.latency.p99);
+            assertTrue(store.scan().count() > 0, "expected the preloaded keys to be written");
+        } finally {
+            server.stop();
+            store.close();
+        }
+    }
+
+    private static long segmentBytes(File dataDir) {
+        long bytes = 0;
+        for (File segment : dataDir.listFiles(TestHashIndexStore.ignoreHintFiles)) {
+            bytes += segment.isFile() ? segment.length() : 0;
+        }
+        return bytes;
+    }
+
     @Test
     public void testScheduledCompaction() throws Exception {
         File dataDir = tempFolder.newFolder();
@@ -286,6 +1395,75 @@ public class TestHashIndexStore {
         hintFile.loadIndex();
     }
 
+    @Test
+    public void testScan() throws Exception {
+        File dataDir = tempFolder.newFolder();
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, "old value " + i);
+        }
+        store.close();
+        Thread.sleep(1);
+
+        store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 50; i++) {
+            expected.put("key" + i, "old value " + i);
+        }
+        for (int i = 0; i < 50; i += 5) {
+            store.put("key" + i, "new value " + i);
+            expected.put("key" + i, "new value " + i);
+        }
+        for (int i = 1; i < 50; i += 5) {
+            store.delete("key" + i);
+            expected.remove("key" + i);
+        }
+
+        try (Stream<Map.Entry<String, String>> records = store.scan()) {
+            assertEquals(expected, records.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        }
+        try (Stream<Map.Entry<String, String>> records = store.scan()) {
+            assertEquals(expected, records.parallel().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)),
+                    "expected parallel scan to return the same records");
+        }
+        store.close();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        File dataDir = new File(tempFolder.getRoot(), "bulk");
+
+        List<Map.Entry<String, String>> records = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < 1000; i++) {
+            records.add(new AbstractMap.SimpleEntry<String, String>("key" + (i % 300), "value " + i));
+        }
+
+        BulkLoader loader = new BulkLoader(dataDir);
+        loader.setSegmentSize(2000);
+        loader.setParallelism(3);
+        int segmentCount = loader.load(records.iterator());
+
+        assertEquals(segmentCount, dataDir.listFiles(TestHashIndexStore.ignoreHintFiles).length);
+        assertEquals(segmentCount, dataDir.listFiles(TestHashIndexStore.includeHintFiles).length,
+                "expected a hint file for every imported segment");
+        assertEquals(1, tempFolder.getRoot().list().length, "expected staging directory to be removed");
+
+        HashIndexStore store = new HashIndexStore(dataDir);
+        store.loadIndex();
+        for (int i = 700; i < 1000; i++) {
+            new KeyTest("key" + (i % 300), "value " + i).evaluate(store);
+        }
+        store.close();
+
+        try {
+            new BulkLoader(dataDir).load(records.iterator());
+            fail("expected bulk load into a non-empty data directory to fail");
+        } catch (IOException e) {
+        }
+    }
+
     private class KeyTest {
         public String key;
         public String value;